@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>
+ * Throughput of the {@link CvsPassword} codec. Every benchmark processes one
+ * batch of batchSize passwords of length characters, so ops/s is batches per
+ * second. Run with 'gradle jmh', which enables the GC profiler to report
+ * bytes allocated per operation (gc.alloc.rate.norm).
+ * 
+ * @author Andrew Kroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CvsPasswordBenchmark
+{
+    /**
+     * All characters accepted by {@link CvsPassword#encode(String)}.
+     */
+    private static final char[] LEGAL_CHARS;
+    static
+    {
+        StringBuilder legal = new StringBuilder();
+        for (char c = 32; c < 127; c++)
+        {
+            if (c != '`' && c != '$')
+            {
+                legal.append(c);
+            }
+        }
+        LEGAL_CHARS = legal.toString().toCharArray();
+    }
+    
+    @Param({"8", "64", "512", "4096"})
+    public int length;
+    
+    @Param({"1", "64", "1024"})
+    public int batchSize;
+    
+    private String[] clearTexts;
+    private String[] encodedPasswords;
+    private char[] output;
+    private int[] ends;
+    private byte[] concatenated;
+    private byte[] concatenatedOutput;
+    
+    @Setup
+    public void setUp()
+    {
+        Random random = new Random(42);
+        clearTexts = new String[batchSize];
+        encodedPasswords = new String[batchSize];
+        
+        for (int i = 0; i < batchSize; i++)
+        {
+            char[] password = new char[length];
+            for (int j = 0; j < length; j++)
+            {
+                password[j] = LEGAL_CHARS[random.nextInt(LEGAL_CHARS.length)];
+            }
+            clearTexts[i] = String.valueOf(password);
+            encodedPasswords[i] = CvsPassword.encode(clearTexts[i]);
+        }
+        
+        output = new char[batchSize * CvsPassword.encodedLength(length)];
+        ends = new int[batchSize];
+        
+        concatenated = new byte[batchSize * length];
+        for (int i = 0; i < batchSize; i++)
+        {
+            for (int j = 0; j < length; j++)
+            {
+                concatenated[i * length + j] = (byte)clearTexts[i].charAt(j);
+            }
+        }
+        concatenatedOutput = new byte[concatenated.length];
+    }
+    
+    @Benchmark
+    public void encodeString(Blackhole blackhole)
+    {
+        for (String clearText : clearTexts)
+        {
+            blackhole.consume(CvsPassword.encode(clearText));
+        }
+    }
+    
+    @Benchmark
+    public void decodeString(Blackhole blackhole)
+    {
+        for (String encoded : encodedPasswords)
+        {
+            blackhole.consume(CvsPassword.decode(encoded));
+        }
+    }
+    
+    @Benchmark
+    public int encodeIntoArray()
+    {
+        int written = 0;
+        for (String clearText : clearTexts)
+        {
+            written = CvsPassword.encode(clearText, 0, clearText.length(), output, 0);
+        }
+        return written;
+    }
+    
+    @Benchmark
+    public int decodeIntoArray()
+    {
+        int written = 0;
+        for (String encoded : encodedPasswords)
+        {
+            written = CvsPassword.decode(encoded, 0, encoded.length(), output, 0);
+        }
+        return written;
+    }
+    
+    @Benchmark
+    public int encodeAll()
+    {
+        return CvsPassword.encodeAll(clearTexts, output, 0, ends);
+    }
+    
+    @Benchmark
+    public int decodeAll()
+    {
+        return CvsPassword.decodeAll(encodedPasswords, output, 0, ends);
+    }
+    
+    @Benchmark
+    public int bulkTransform()
+    {
+        return CvsBulkScrambler.transform(concatenated, 0, concatenated.length, 
+                                          concatenatedOutput, 0);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Drives pserver authentication handshakes against a {@link CvsAuthServer}
+ * and reports handshakes per second and latency percentiles. Each client
+ * thread opens a new connection per handshake, the same way CVS clients do.
+ * 
+ * <p>
+ * With no host given, an in-process server is started on a loopback
+ * ephemeral port.
+ * 
+ * <pre>
+ * CvsAuthLoadGenerator [clients] [handshakesPerClient] [host:port]
+ * </pre>
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsAuthLoadGenerator
+{
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    
+    private static final String REPOSITORY = "/cvsroot/load";
+    private static final String USER = "load";
+    private static final String PASSWORD = "l0ad-test!";
+    
+    private final InetSocketAddress address;
+    private final int clients;
+    private final int handshakesPerClient;
+    
+    public CvsAuthLoadGenerator(InetSocketAddress address, int clients, int handshakesPerClient)
+    {
+        this.address = address;
+        this.clients = clients;
+        this.handshakesPerClient = handshakesPerClient;
+    }
+    
+    /**
+     * Runs the load and prints the results to System.out.
+     */
+    public void run() throws Exception
+    {
+        final byte[] request = ("BEGIN AUTH REQUEST\n" + 
+                REPOSITORY + "\n" + 
+                USER + "\n" + 
+                CvsPassword.encode(PASSWORD) + "\n" + 
+                "END AUTH REQUEST\n").getBytes(ISO_8859_1);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try
+        {
+            Future<?>[] futures = new Future<?>[clients];
+            final long[][] latencies = new long[clients][];
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++)
+            {
+                final int client = i;
+                futures[i] = executor.submit(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        latencies[client] = runClient(request);
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            
+            long[] all = new long[clients * handshakesPerClient];
+            for (int i = 0; i < clients; i++)
+            {
+                System.arraycopy(latencies[i], 0, all, i * handshakesPerClient, handshakesPerClient);
+            }
+            Arrays.sort(all);
+            
+            System.out.printf("clients=%d handshakes=%d elapsed=%.1fms%n", 
+                    clients, all.length, elapsed / 1e6);
+            System.out.printf("throughput=%.0f handshakes/s%n", 
+                    all.length / (elapsed / 1e9));
+            System.out.printf("latency p50=%dus p90=%dus p99=%dus max=%dus%n", 
+                    micros(percentile(all, 0.50)), 
+                    micros(percentile(all, 0.90)), 
+                    micros(percentile(all, 0.99)), 
+                    micros(all[all.length - 1]));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    private long[] runClient(byte[] request) throws IOException
+    {
+        long[] latencies = new long[handshakesPerClient];
+        ByteBuffer response = ByteBuffer.allocate(64);
+        
+        for (int i = 0; i < handshakesPerClient; i++)
+        {
+            long start = System.nanoTime();
+            
+            SocketChannel channel = SocketChannel.open(address);
+            try
+            {
+                channel.socket().setTcpNoDelay(true);
+                channel.write(ByteBuffer.wrap(request));
+                
+                response.clear();
+                while (channel.read(response) >= 0)
+                {
+                    // Read until the server closes the connection.
+                }
+            }
+            finally
+            {
+                channel.close();
+            }
+            
+            latencies[i] = System.nanoTime() - start;
+            
+            response.flip();
+            if (response.remaining() < 3 || response.get(2) != 'L')
+            {
+                throw new IOException("Authentication was rejected: " + 
+                        new String(response.array(), 0, response.limit(), ISO_8859_1));
+            }
+        }
+        return latencies;
+    }
+    
+    private static long percentile(long[] sorted, double fraction)
+    {
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+    
+    private static long micros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        
+        CvsAuthServer server = null;
+        InetSocketAddress address;
+        if (args.length > 2)
+        {
+            String[] hostPort = args[2].split(":");
+            address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        else
+        {
+            CvsAuthServer.MapCredentialStore store = new CvsAuthServer.MapCredentialStore();
+            store.add(REPOSITORY, USER, PASSWORD);
+            server = new CvsAuthServer(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), store);
+            address = server.getLocalAddress();
+            
+            Thread serverThread = new Thread(server, "CvsAuthServer");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+        
+        try
+        {
+            // Warm up, then measure:
+            new CvsAuthLoadGenerator(address, clients, Math.max(1, handshakes / 10)).run();
+            new CvsAuthLoadGenerator(address, clients, handshakes).run();
+        }
+        finally
+        {
+            if (server != null)
+            {
+                server.close();
+            }
+        }
+    }
+}
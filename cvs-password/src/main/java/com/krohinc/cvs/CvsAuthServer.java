@@ -0,0 +1,548 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A stand-in for the authentication phase of a CVS pserver. All connections
+ * are served by a single selector thread. Each client sends:
+ * <pre>
+ * BEGIN AUTH REQUEST
+ * /path/to/repository
+ * username
+ * Ascrambled
+ * END AUTH REQUEST
+ * </pre>
+ * The scrambled password is decoded with {@link CvsPassword} and checked
+ * against a {@link CredentialStore}. The server answers "I LOVE YOU" or
+ * "I HATE YOU" and closes the connection. VERIFICATION requests are handled
+ * the same way.
+ * 
+ * <p>
+ * See {@link CvsAuthLoadGenerator} for measuring handshake throughput.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsAuthServer implements Runnable, Closeable
+{
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    
+    /**
+     * Longest authentication request accepted, in bytes, counting every
+     * line from BEGIN AUTH REQUEST through END AUTH REQUEST.
+     */
+    private static final int MAX_REQUEST_LENGTH = 1024;
+    
+    private static final ByteBuffer I_LOVE_YOU = response("I LOVE YOU\n");
+    private static final ByteBuffer I_HATE_YOU = response("I HATE YOU\n");
+    
+    /**
+     * Source of the expected passwords.
+     */
+    public interface CredentialStore
+    {
+        /**
+         * @param repository
+         *            the repository the client asked for
+         * @param user
+         *            the user name the client sent
+         * 
+         * @return the password in clear, or null if the user may not access
+         *      the repository
+         */
+        String getPassword(String repository, String user);
+    }
+    
+    /**
+     * A CredentialStore backed by a map. Not thread-safe for writes; add all
+     * users before the server starts.
+     */
+    public static class MapCredentialStore implements CredentialStore
+    {
+        private final Map<String, String> passwords = new HashMap<String, String>();
+        
+        public void add(String repository, String user, String password)
+        {
+            passwords.put(key(repository, user), password);
+        }
+        
+        public String getPassword(String repository, String user)
+        {
+            return passwords.get(key(repository, user));
+        }
+        
+        private static String key(String repository, String user)
+        {
+            return user + '@' + repository;
+        }
+    }
+    
+    private final CredentialStore credentialStore;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    
+    /**
+     * Scratch space for decoding passwords. Only touched by the selector
+     * thread.
+     */
+    private final char[] decoded = new char[MAX_REQUEST_LENGTH];
+    
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private final AtomicLong failedConnections = new AtomicLong();
+    
+    /**
+     * Opens the server socket. Call {@link #run()} to start serving.
+     * 
+     * @param address
+     *            the address to listen on; use port 0 for an ephemeral port
+     * @param credentialStore
+     *            the expected passwords
+     *            
+     * @throws IOException
+     *             if the socket cannot be bound
+     */
+    public CvsAuthServer(InetSocketAddress address, CredentialStore credentialStore) throws IOException
+    {
+        this.credentialStore = credentialStore;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address, 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    /**
+     * @return the address the server is listening on
+     */
+    public InetSocketAddress getLocalAddress() throws IOException
+    {
+        return (InetSocketAddress)serverChannel.getLocalAddress();
+    }
+    
+    /**
+     * Serves connections until {@link #close()} is called.
+     */
+    public void run()
+    {
+        try
+        {
+            while (!closed)
+            {
+                selector.select();
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.isAcceptable())
+                    {
+                        // Keeps the server key registered even if
+                        // accepting fails:
+                        accept();
+                        continue;
+                    }
+                    
+                    try
+                    {
+                        if (key.isReadable())
+                        {
+                            read(key);
+                        }
+                        else if (key.isWritable())
+                        {
+                            write(key);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        connectionFailed(key);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Thrown by the CredentialStore; only this
+                        // connection is lost:
+                        connectionFailed(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            if (!closed)
+            {
+                failure = e;
+            }
+        }
+        finally
+        {
+            for (SelectionKey key : selector.keys())
+            {
+                closeQuietly(key);
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore
+            }
+        }
+    }
+    
+    private void accept()
+    {
+        while (true)
+        {
+            SocketChannel channel;
+            try
+            {
+                channel = serverChannel.accept();
+            }
+            catch (IOException e)
+            {
+                // Out of file descriptors, for example. Try again on the
+                // next select:
+                failedConnections.incrementAndGet();
+                return;
+            }
+            if (channel == null)
+            {
+                return;
+            }
+            
+            try
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(selector, SelectionKey.OP_READ, new Connection());
+            }
+            catch (IOException e)
+            {
+                // Reset before it could be set up:
+                failedConnections.incrementAndGet();
+                closeQuietly(channel);
+            }
+        }
+    }
+    
+    private void connectionFailed(SelectionKey key)
+    {
+        failedConnections.incrementAndGet();
+        closeQuietly(key);
+    }
+    
+    private void read(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection connection = (Connection)key.attachment();
+        ByteBuffer in = connection.in;
+        
+        int count = channel.read(in);
+        if (count < 0)
+        {
+            closeQuietly(key);
+            return;
+        }
+        
+        Boolean result = connection.parse();
+        if (result == null)
+        {
+            if (!in.hasRemaining())
+            {
+                // Request too long:
+                respond(key, I_HATE_YOU);
+            }
+            return;
+        }
+        
+        respond(key, result.booleanValue() ? I_LOVE_YOU : I_HATE_YOU);
+    }
+    
+    private void respond(SelectionKey key, ByteBuffer response) throws IOException
+    {
+        Connection connection = (Connection)key.attachment();
+        connection.out = response.duplicate();
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+    
+    private void write(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection connection = (Connection)key.attachment();
+        
+        channel.write(connection.out);
+        if (!connection.out.hasRemaining())
+        {
+            closeQuietly(key);
+        }
+    }
+    
+    private boolean authenticate(Connection connection)
+    {
+        String expected = credentialStore.getPassword(connection.repository, connection.user);
+        if (expected == null)
+        {
+            return false;
+        }
+        
+        ByteBuffer in = connection.in;
+        int start = connection.passwordStart;
+        int end = connection.passwordEnd;
+        
+        // Skip the leading 'A' the same way CvsPassword.decode does:
+        if (start < end && in.get(start) == 'A')
+        {
+            start++;
+        }
+        
+        int length = end - start;
+        if (length != expected.length())
+        {
+            return false;
+        }
+        
+        for (int i = 0; i < length; i++)
+        {
+            decoded[i] = (char)(in.get(start + i) & 0xff);
+        }
+        if (CvsPassword.tryDecode(decoded, 0, length, decoded, 0) < 0)
+        {
+            return false;
+        }
+        
+        boolean match = true;
+        for (int i = 0; i < length; i++)
+        {
+            match &= decoded[i] == expected.charAt(i);
+        }
+        return match;
+    }
+    
+    /**
+     * @return the error that stopped {@link #run()}, or null if it has not
+     *      failed
+     */
+    public IOException getFailure()
+    {
+        return failure;
+    }
+    
+    /**
+     * @return the number of connections that failed to be accepted or were
+     *      closed because of an I/O error or a CredentialStore failure
+     */
+    public long getFailedConnections()
+    {
+        return failedConnections.get();
+    }
+    
+    /**
+     * Stops the server and closes all connections.
+     */
+    public void close() throws IOException
+    {
+        closed = true;
+        selector.wakeup();
+        serverChannel.close();
+    }
+    
+    private static void closeQuietly(SelectionKey key)
+    {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+    
+    private static void closeQuietly(Channel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            // Ignore
+        }
+    }
+    
+    private static ByteBuffer response(String text)
+    {
+        byte[] bytes = text.getBytes(ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Per connection parse state. Lines are located in place within the
+     * read buffer.
+     */
+    private class Connection
+    {
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+        ByteBuffer out;
+        
+        int scanned;
+        int lineStart;
+        int lineNumber;
+        boolean verification;
+        
+        String repository;
+        String user;
+        int passwordStart;
+        int passwordEnd;
+        
+        /**
+         * @return null if more input is needed, otherwise whether the
+         *      client authenticated
+         */
+        Boolean parse()
+        {
+            int limit = in.position();
+            
+            while (scanned < limit)
+            {
+                if (in.get(scanned++) != '\n')
+                {
+                    continue;
+                }
+                
+                int start = lineStart;
+                int end = scanned - 1;
+                lineStart = scanned;
+                
+                switch (lineNumber++)
+                {
+                    case 0:
+                        if (lineEquals(start, end, "BEGIN AUTH REQUEST"))
+                        {
+                            verification = false;
+                        }
+                        else if (lineEquals(start, end, "BEGIN VERIFICATION REQUEST"))
+                        {
+                            verification = true;
+                        }
+                        else
+                        {
+                            return Boolean.FALSE;
+                        }
+                        break;
+                    case 1:
+                        repository = string(start, end);
+                        break;
+                    case 2:
+                        user = string(start, end);
+                        break;
+                    case 3:
+                        passwordStart = start;
+                        passwordEnd = end;
+                        break;
+                    default:
+                        String expectedEnd = verification 
+                                ? "END VERIFICATION REQUEST" : "END AUTH REQUEST";
+                        if (!lineEquals(start, end, expectedEnd))
+                        {
+                            return Boolean.FALSE;
+                        }
+                        return Boolean.valueOf(authenticate(this));
+                }
+            }
+            return null;
+        }
+        
+        private boolean lineEquals(int start, int end, String expected)
+        {
+            if (end - start != expected.length())
+            {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++)
+            {
+                if (in.get(start + i) != expected.charAt(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private String string(int start, int end)
+        {
+            return new String(in.array(), in.arrayOffset() + start, end - start, ISO_8859_1);
+        }
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3)
+        {
+            usage();
+        }
+        
+        MapCredentialStore store = new MapCredentialStore();
+        for (int i = 2; i < args.length; i++)
+        {
+            int equals = args[i].indexOf('=');
+            if (equals < 0)
+            {
+                usage();
+            }
+            store.add(args[1], args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        
+        CvsAuthServer server = new CvsAuthServer(
+                new InetSocketAddress(Integer.parseInt(args[0])), store);
+        System.out.println("Listening on " + server.getLocalAddress());
+        server.run();
+        
+        if (server.getFailure() != null)
+        {
+            System.err.println("CvsAuthServer stopped: " + server.getFailure());
+            System.exit(1);
+        }
+    }
+    
+    private static void usage()
+    {
+        System.err.println("Usage: CvsAuthServer <port> <repository> <user>=<password>...");
+        System.exit(2);
+    }
+}
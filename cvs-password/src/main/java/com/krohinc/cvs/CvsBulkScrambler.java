@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * Applies the pserver scramble to large ASCII byte buffers. The scramble is
+ * its own inverse, so the same transform encodes and decodes. No 'A' prefix
+ * is added or removed; this is meant for long runs of concatenated password
+ * fields, such as the password column of a bulk export.
+ * 
+ * <p>
+ * Input is processed 8 bytes at a time. Each 64-bit word is validated with a
+ * few SIMD-within-a-register tests. A valid word is then mapped through a
+ * 256 entry table with no per-byte branches or bounds checks. Words that fail
+ * validation, and the tail of the input, go through the scalar path. The
+ * output is byte for byte the same as
+ * {@link CvsPassword#encode(char[], int, int, char[], int)} without the prefix.
+ * 
+ * <p>
+ * As with {@link CvsScrambleCharset}, '\n' and '\r' are passed through
+ * unchanged. Any other byte rejected by {@link CvsPassword#isLegal(char)}
+ * stops the transform.
+ * 
+ * @author Andrew Kroh
+ */
+public final class CvsBulkScrambler
+{
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    
+    private static final long SPACES = ONES * ' ';
+    private static final long DELETES = ONES * 0x7f;
+    private static final long DOLLARS = ONES * '$';
+    private static final long BACKTICKS = ONES * '`';
+    
+    /**
+     * Scramble of every byte value, 0 where the byte is illegal.
+     */
+    private static final byte[] TABLE = new byte[256];
+    static
+    {
+        for (int b = 0; b < TABLE.length; b++)
+        {
+            TABLE[b] = (byte)CvsPassword.lookup((char)b);
+        }
+        TABLE['\n'] = '\n';
+        TABLE['\r'] = '\r';
+    }
+    
+    private CvsBulkScrambler()
+    {
+        // Static utility.
+    }
+    
+    /**
+     * Scrambles src[offset, offset + length) into dst starting at dstOffset.
+     * src and dst may be the same array with the same offsets to transform in
+     * place.
+     * 
+     * @return length on success, or -(i + 1) where i is the index in src of
+     *      the first illegal byte; bytes before it have been written to dst
+     */
+    public static int transform(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+    {
+        ByteBuffer in = ByteBuffer.wrap(src, offset, length).order(ByteOrder.nativeOrder());
+        ByteBuffer out = ByteBuffer.wrap(dst, dstOffset, length).order(ByteOrder.nativeOrder());
+        int result = transform(in, out);
+        return result < 0 ? result - offset : result;
+    }
+    
+    /**
+     * Scrambles the remaining bytes of src into dst. The positions of both
+     * buffers are advanced past the bytes transformed.
+     * 
+     * @return the number of bytes transformed, or -(i + 1) where i is the
+     *      index of the first illegal byte relative to src's starting
+     *      position; both buffers are left positioned at that byte
+     *      
+     * @throws BufferOverflowException
+     *             if dst has less room remaining than src has bytes
+     */
+    public static int transform(ByteBuffer src, ByteBuffer dst)
+    {
+        int start = src.position();
+        int end = src.limit();
+        if (dst.remaining() < end - start)
+        {
+            throw new BufferOverflowException();
+        }
+        
+        boolean swap = src.order() != dst.order();
+        boolean failed = false;
+        int sp = start;
+        int dp = dst.position();
+        
+        while (end - sp >= 8)
+        {
+            long word = src.getLong(sp);
+            if (isLegalWord(word))
+            {
+                long mapped = mapWord(word);
+                dst.putLong(dp, swap ? Long.reverseBytes(mapped) : mapped);
+                sp += 8;
+                dp += 8;
+            }
+            else
+            {
+                // Line terminators or an illegal byte; let the
+                // scalar loop sort out which:
+                int stop = transformScalar(src, sp, sp + 8, dst, dp);
+                failed = stop < sp + 8;
+                dp += stop - sp;
+                sp = stop;
+                if (failed)
+                {
+                    break;
+                }
+            }
+        }
+        
+        if (!failed && sp < end)
+        {
+            int stop = transformScalar(src, sp, end, dst, dp);
+            failed = stop < end;
+            dp += stop - sp;
+            sp = stop;
+        }
+        
+        src.position(sp);
+        dst.position(dp);
+        return failed ? -(sp - start + 1) : sp - start;
+    }
+    
+    /**
+     * @return true if every byte in the word is in 32 - 126 and is
+     *      neither '$' nor '`'
+     */
+    private static boolean isLegalWord(long word)
+    {
+        long bad = word & HIGHS;                    // >= 128
+        bad |= (word - SPACES) & ~word & HIGHS;     // < 32
+        bad |= hasZeroByte(word ^ DELETES);         // == 127
+        bad |= hasZeroByte(word ^ DOLLARS);         // == '$'
+        bad |= hasZeroByte(word ^ BACKTICKS);       // == '`'
+        return bad == 0;
+    }
+    
+    private static long hasZeroByte(long word)
+    {
+        return (word - ONES) & ~word & HIGHS;
+    }
+    
+    private static long mapWord(long word)
+    {
+        byte[] table = TABLE;
+        return  (table[(int)(word         & 0xff)] & 0xffL)
+             | ((table[(int)(word >>>  8) & 0xff] & 0xffL) <<  8)
+             | ((table[(int)(word >>> 16) & 0xff] & 0xffL) << 16)
+             | ((table[(int)(word >>> 24) & 0xff] & 0xffL) << 24)
+             | ((table[(int)(word >>> 32) & 0xff] & 0xffL) << 32)
+             | ((table[(int)(word >>> 40) & 0xff] & 0xffL) << 40)
+             | ((table[(int)(word >>> 48) & 0xff] & 0xffL) << 48)
+             | ((table[(int)(word >>> 56) & 0xff] & 0xffL) << 56);
+    }
+    
+    /**
+     * @return the index in src of the first illegal byte, or end
+     */
+    private static int transformScalar(ByteBuffer src, int from, int end, ByteBuffer dst, int dp)
+    {
+        for (int i = from; i < end; i++)
+        {
+            byte mapped = TABLE[src.get(i) & 0xff];
+            if (mapped == 0)
+            {
+                return i;
+            }
+            dst.put(dp++, mapped);
+        }
+        return end;
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Holds pserver credentials outside of the Java heap, keyed by CVSROOT.
+ * Entries are packed into fixed-size direct buffer slabs and found through an
+ * open addressing hash index that is also off-heap. The heap footprint stays
+ * the same however many credentials are loaded, and no String copies of the
+ * passwords are created.
+ * 
+ * <p>
+ * Passwords are stored in their scrambled form and decoded into a caller
+ * supplied char[] by {@link #get(CharSequence, char[], int)}. Callers should
+ * clear that array when done with it. Removed entries, and every slab on
+ * {@link #close()}, are overwritten with zeros.
+ * 
+ * <p>
+ * Roots must be ISO-8859-1 and at most 65535 characters. This class is
+ * thread-safe.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsCredentialVault implements Closeable
+{
+    private static final int SLAB_SIZE = 256 * 1024;
+    
+    /**
+     * Entry layout: hash (int), root length (char), password length (char),
+     * root bytes, scrambled password bytes.
+     */
+    private static final int HEADER_SIZE = 8;
+    
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+    
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer currentSlab;
+    
+    private LongBuffer index;
+    private int size;
+    private int usedSlots;
+    private long liveBytes;
+    private long removedBytes;
+    private boolean closed;
+    
+    /**
+     * @param expectedEntries
+     *            number of entries the index is initially sized for
+     */
+    public CvsCredentialVault(int expectedEntries)
+    {
+        int capacity = 16;
+        while (capacity < expectedEntries * 2)
+        {
+            capacity <<= 1;
+        }
+        index = allocateIndex(capacity);
+    }
+    
+    private static LongBuffer allocateIndex(int capacity)
+    {
+        return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+    
+    /**
+     * Adds every entry of a .cvspass file without creating Strings for them.
+     * Later entries for the same root replace earlier ones.
+     * 
+     * @param reader
+     *            a reader positioned before the first entry to add
+     *            
+     * @return the number of entries added
+     */
+    public int putAll(CvsPassFileReader reader)
+    {
+        int count = 0;
+        while (reader.next())
+        {
+            put(reader.root(), reader.scrambledPassword());
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Stores a credential, replacing any existing one for the same root.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT, e.g. :pserver:user@host:2401/repo
+     * @param scrambledPassword
+     *            the password in the pserver scrambled form
+     *            
+     * @throws IllegalArgumentException
+     *             if the root is not ISO-8859-1, either value is too long,
+     *             or the password contains an illegal character
+     */
+    public synchronized void put(CharSequence cvsRoot, CharSequence scrambledPassword)
+    {
+        checkOpen();
+        
+        int rootLength = cvsRoot.length();
+        int passwordLength = scrambledPassword.length();
+        int entrySize = HEADER_SIZE + rootLength + passwordLength;
+        if (rootLength > Character.MAX_VALUE || passwordLength > Character.MAX_VALUE || 
+            entrySize > SLAB_SIZE)
+        {
+            throw new IllegalArgumentException("Credential is too long.");
+        }
+        for (int i = 0; i < rootLength; i++)
+        {
+            if (cvsRoot.charAt(i) > 0xff)
+            {
+                throw new IllegalArgumentException("CVSROOT is not ISO-8859-1.");
+            }
+        }
+        int passwordStart = passwordLength > 0 && scrambledPassword.charAt(0) == 'A' ? 1 : 0;
+        if (CvsPassword.indexOfIllegal(scrambledPassword, passwordStart, passwordLength) >= 0)
+        {
+            throw new IllegalArgumentException(
+                    "Illegal character was found in scrambled password.");
+        }
+        
+        int hash = hash(cvsRoot);
+        remove(cvsRoot, hash);
+        
+        if (removedBytes > SLAB_SIZE && removedBytes > liveBytes)
+        {
+            compact();
+        }
+        
+        if (currentSlab == null || currentSlab.remaining() < entrySize)
+        {
+            currentSlab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            slabs.add(currentSlab);
+        }
+        
+        ByteBuffer slab = currentSlab;
+        int offset = slab.position();
+        slab.putInt(hash);
+        slab.putChar((char)rootLength);
+        slab.putChar((char)passwordLength);
+        for (int i = 0; i < rootLength; i++)
+        {
+            slab.put((byte)cvsRoot.charAt(i));
+        }
+        for (int i = 0; i < passwordLength; i++)
+        {
+            slab.put((byte)scrambledPassword.charAt(i));
+        }
+        
+        if ((usedSlots + 1) * 2 > index.capacity())
+        {
+            // Only grow when live entries need the room; otherwise
+            // rehashing just clears out the REMOVED slots:
+            boolean grow = (size + 1) * 4 > index.capacity();
+            rehash(grow ? index.capacity() * 2 : index.capacity());
+        }
+        if (insert(hash, address(slabs.size() - 1, offset)))
+        {
+            usedSlots++;
+        }
+        liveBytes += entrySize;
+        size++;
+    }
+    
+    /**
+     * Decodes the password stored for a root into dst.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT to look up
+     * @param dst
+     *            array that receives the password in clear
+     * @param dstOffset
+     *            index in dst at which the password is written
+     *            
+     * @return the number of characters written, or -1 if the root is not
+     *      in the vault
+     *      
+     * @throws IndexOutOfBoundsException
+     *             if dst is too small; see
+     *             {@link #passwordLength(CharSequence)}
+     */
+    public synchronized int get(CharSequence cvsRoot, char[] dst, int dstOffset)
+    {
+        checkOpen();
+        
+        int slot = find(cvsRoot, hash(cvsRoot));
+        if (slot < 0)
+        {
+            return -1;
+        }
+        
+        long address = index.get(slot);
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        int rootLength = slab.getChar(offset + 4);
+        int passwordLength = slab.getChar(offset + 6);
+        int passwordOffset = offset + HEADER_SIZE + rootLength;
+        
+        if (passwordLength > 0 && slab.get(passwordOffset) == 'A')
+        {
+            passwordOffset++;
+            passwordLength--;
+        }
+        
+        if (dstOffset < 0 || dstOffset > dst.length - passwordLength)
+        {
+            throw new IndexOutOfBoundsException("dst is too small for the password.");
+        }
+        
+        // Decode straight from the slab; the password was validated when
+        // stored:
+        for (int i = 0; i < passwordLength; i++)
+        {
+            dst[dstOffset + i] = CvsPassword.lookup((char)(slab.get(passwordOffset + i) & 0xff));
+        }
+        return passwordLength;
+    }
+    
+    /**
+     * @param cvsRoot
+     *            the CVSROOT to look up
+     *            
+     * @return the length of the decoded password, or -1 if the root is not
+     *      in the vault
+     */
+    public synchronized int passwordLength(CharSequence cvsRoot)
+    {
+        checkOpen();
+        
+        int slot = find(cvsRoot, hash(cvsRoot));
+        if (slot < 0)
+        {
+            return -1;
+        }
+        
+        long address = index.get(slot);
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        int rootLength = slab.getChar(offset + 4);
+        int passwordLength = slab.getChar(offset + 6);
+        
+        if (passwordLength > 0 && slab.get(offset + HEADER_SIZE + rootLength) == 'A')
+        {
+            passwordLength--;
+        }
+        return passwordLength;
+    }
+    
+    /**
+     * Removes and zeroes the credential stored for a root. The space it used
+     * is reclaimed once removed entries take up more room than live ones.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT to remove
+     *            
+     * @return true if there was a credential for the root
+     */
+    public synchronized boolean remove(CharSequence cvsRoot)
+    {
+        checkOpen();
+        return remove(cvsRoot, hash(cvsRoot));
+    }
+    
+    private boolean remove(CharSequence cvsRoot, int hash)
+    {
+        int slot = find(cvsRoot, hash);
+        if (slot < 0)
+        {
+            return false;
+        }
+        
+        long address = index.get(slot);
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        int entrySize = HEADER_SIZE + slab.getChar(offset + 4) + slab.getChar(offset + 6);
+        for (int i = offset; i < offset + entrySize; i++)
+        {
+            slab.put(i, (byte)0);
+        }
+        
+        index.put(slot, REMOVED);
+        liveBytes -= entrySize;
+        removedBytes += entrySize;
+        size--;
+        return true;
+    }
+    
+    /**
+     * Copies the live entries into new slabs, updates their addresses in
+     * the index, and zeroes and drops the old slabs.
+     */
+    private void compact()
+    {
+        List<ByteBuffer> oldSlabs = new ArrayList<ByteBuffer>(slabs);
+        slabs.clear();
+        currentSlab = null;
+        
+        for (int slot = 0; slot < index.capacity(); slot++)
+        {
+            long address = index.get(slot);
+            if (address == EMPTY || address == REMOVED)
+            {
+                continue;
+            }
+            
+            ByteBuffer oldSlab = oldSlabs.get(slab(address));
+            int offset = offset(address);
+            int entrySize = HEADER_SIZE + oldSlab.getChar(offset + 4) + oldSlab.getChar(offset + 6);
+            
+            if (currentSlab == null || currentSlab.remaining() < entrySize)
+            {
+                currentSlab = ByteBuffer.allocateDirect(SLAB_SIZE);
+                slabs.add(currentSlab);
+            }
+            
+            ByteBuffer entry = oldSlab.duplicate();
+            entry.limit(offset + entrySize).position(offset);
+            index.put(slot, address(slabs.size() - 1, currentSlab.position()));
+            currentSlab.put(entry);
+        }
+        
+        zero(oldSlabs);
+        removedBytes = 0;
+    }
+    
+    private static void zero(List<ByteBuffer> buffers)
+    {
+        byte[] zeros = new byte[8192];
+        for (ByteBuffer buffer : buffers)
+        {
+            buffer.clear();
+            while (buffer.hasRemaining())
+            {
+                buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+            }
+        }
+    }
+    
+    /**
+     * @return the number of credentials in the vault
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+    
+    /**
+     * @return bytes of off-heap memory held by the vault
+     */
+    public synchronized long offHeapBytes()
+    {
+        return (long)slabs.size() * SLAB_SIZE + index.capacity() * 8L;
+    }
+    
+    /**
+     * Zeroes every slab and the index and releases them. The vault cannot be
+     * used afterwards.
+     */
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        
+        zero(slabs);
+        for (int i = 0; i < index.capacity(); i++)
+        {
+            index.put(i, EMPTY);
+        }
+        
+        slabs.clear();
+        currentSlab = null;
+        size = 0;
+        usedSlots = 0;
+        liveBytes = 0;
+        removedBytes = 0;
+        closed = true;
+    }
+    
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The vault has been closed.");
+        }
+    }
+    
+    private int find(CharSequence cvsRoot, int hash)
+    {
+        int mask = index.capacity() - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+        {
+            long address = index.get(slot);
+            if (address == EMPTY)
+            {
+                return -1;
+            }
+            if (address != REMOVED && rootEquals(address, cvsRoot, hash))
+            {
+                return slot;
+            }
+        }
+    }
+    
+    /**
+     * Puts an address, which must not already be in the index, into the
+     * first free or REMOVED slot on its probe path.
+     * 
+     * @return true if an EMPTY slot was used, false if a REMOVED one was
+     */
+    private boolean insert(int hash, long address)
+    {
+        int mask = index.capacity() - 1;
+        int slot = hash & mask;
+        long current;
+        while ((current = index.get(slot)) != EMPTY && current != REMOVED)
+        {
+            slot = (slot + 1) & mask;
+        }
+        index.put(slot, address);
+        return current == EMPTY;
+    }
+    
+    private void rehash(int capacity)
+    {
+        LongBuffer old = index;
+        index = allocateIndex(capacity);
+        usedSlots = 0;
+        
+        for (int i = 0; i < old.capacity(); i++)
+        {
+            long address = old.get(i);
+            if (address != EMPTY && address != REMOVED)
+            {
+                insert(slabs.get(slab(address)).getInt(offset(address)), address);
+                usedSlots++;
+            }
+            old.put(i, EMPTY);
+        }
+    }
+    
+    private boolean rootEquals(long address, CharSequence cvsRoot, int hash)
+    {
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        if (slab.getInt(offset) != hash || slab.getChar(offset + 4) != cvsRoot.length())
+        {
+            return false;
+        }
+        
+        int rootOffset = offset + HEADER_SIZE;
+        for (int i = 0; i < cvsRoot.length(); i++)
+        {
+            if ((char)(slab.get(rootOffset + i) & 0xff) != cvsRoot.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int hash(CharSequence chars)
+    {
+        int h = 0;
+        for (int i = 0; i < chars.length(); i++)
+        {
+            h = 31 * h + chars.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Slab numbers are stored plus one so that no address equals EMPTY.
+     */
+    private static long address(int slab, int offset)
+    {
+        return ((long)(slab + 1) << 32) | offset;
+    }
+    
+    private static int slab(long address)
+    {
+        return (int)(address >>> 32) - 1;
+    }
+    
+    private static int offset(long address)
+    {
+        return (int)address;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "CvsCredentialVault[size=" + size() + ", offHeapBytes=" + offHeapBytes() + "]";
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A forward-only cursor over the entries of a .cvspass file. The file is
+ * memory-mapped and entries are parsed in place, so walking the file does not
+ * create a String per line. The password of the current entry is only decoded
+ * when one of the decode methods is called.
+ * 
+ * <p>
+ * Both entry formats written by CVS are understood:
+ * <pre>
+ * /1 :pserver:user@host:2401/repo Axyz
+ * :pserver:user@host:/repo Axyz
+ * </pre>
+ * 
+ * <p>
+ * Typical usage:
+ * <pre>
+ * CvsPassFileReader reader = CvsPassFileReader.open(file);
+ * try
+ * {
+ *     while (reader.next())
+ *     {
+ *         if (reader.rootEquals(root))
+ *         {
+ *             return reader.decodePassword();
+ *         }
+ *     }
+ * }
+ * finally
+ * {
+ *     reader.close();
+ * }
+ * </pre>
+ * 
+ * <p>
+ * The CharSequences returned by {@link #root()} and
+ * {@link #scrambledPassword()} are views over the file contents that are
+ * reused for each entry. They are only valid until the next call to
+ * {@link #next()}. Instances of this class are not thread-safe.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassFileReader implements Closeable
+{
+    private static final byte[] VERSION_1_PREFIX = {'/', '1', ' '};
+    
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int limit;
+    private final FileChannel channel;
+    
+    private final ByteSequence root = new ByteSequence();
+    private final ByteSequence password = new ByteSequence();
+    
+    private int position;
+    private int lineStart = -1;
+    private int version;
+    
+    /**
+     * Creates a reader over the bytes between the buffer's position and its
+     * limit. The buffer's position is not modified.
+     * 
+     * @param buffer
+     *            the .cvspass content
+     */
+    public CvsPassFileReader(ByteBuffer buffer)
+    {
+        this(buffer, null);
+    }
+    
+    private CvsPassFileReader(ByteBuffer buffer, FileChannel channel)
+    {
+        this.buffer = buffer;
+        this.base = buffer.position();
+        this.position = base;
+        this.limit = buffer.limit();
+        this.channel = channel;
+    }
+    
+    /**
+     * Memory-maps the given .cvspass file and returns a reader positioned
+     * before its first entry.
+     * 
+     * @param file
+     *            the .cvspass file
+     *            
+     * @return a new reader which must be closed by the caller
+     * 
+     * @throws IOException
+     *             if the file cannot be read or is larger than 2GB
+     */
+    public static CvsPassFileReader open(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException(file + " is too large to map (" + size + " bytes).");
+            }
+            
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new CvsPassFileReader(buffer, channel);
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Advances to the next entry. Blank and malformed lines are skipped.
+     * 
+     * @return true if the cursor is positioned on an entry, false if the end
+     *      of the content has been reached
+     */
+    public boolean next()
+    {
+        while (position < limit)
+        {
+            int start = position;
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n')
+            {
+                end++;
+            }
+            position = end < limit ? end + 1 : end;
+            
+            if (parseLine(start, end))
+            {
+                lineStart = start;
+                return true;
+            }
+        }
+        
+        lineStart = -1;
+        return false;
+    }
+    
+    private boolean parseLine(int start, int end)
+    {
+        // Tolerate CRLF line endings:
+        if (end > start && buffer.get(end - 1) == '\r')
+        {
+            end--;
+        }
+        
+        int rootStart = start;
+        int lineVersion = 0;
+        if (startsWith(start, end, VERSION_1_PREFIX))
+        {
+            rootStart += VERSION_1_PREFIX.length;
+            lineVersion = 1;
+        }
+        
+        int separator = rootStart;
+        while (separator < end && buffer.get(separator) != ' ')
+        {
+            separator++;
+        }
+        
+        if (separator == rootStart || separator == end)
+        {
+            return false;
+        }
+        
+        version = lineVersion;
+        root.set(rootStart, separator);
+        password.set(separator + 1, end);
+        return true;
+    }
+    
+    private boolean startsWith(int start, int end, byte[] prefix)
+    {
+        if (end - start < prefix.length)
+        {
+            return false;
+        }
+        
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (buffer.get(start + i) != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Repositions the cursor so the next call to {@link #next()} parses the
+     * line starting at the given offset. Offsets are those returned by
+     * {@link #lineOffset()}.
+     * 
+     * @param offset
+     *            offset of a line start relative to the start of the content
+     */
+    public void seek(int offset)
+    {
+        if (offset < 0 || offset > size())
+        {
+            throw new IndexOutOfBoundsException("offset=" + offset);
+        }
+        
+        position = base + offset;
+        lineStart = -1;
+    }
+    
+    /**
+     * @return the number of bytes of content covered by this reader
+     */
+    public int size()
+    {
+        return limit - base;
+    }
+    
+    private void checkEntry()
+    {
+        if (lineStart < 0)
+        {
+            throw new IllegalStateException("Cursor is not positioned on an entry.");
+        }
+    }
+    
+    /**
+     * @return offset of the current entry's line relative to the start of the
+     *      content
+     */
+    public int lineOffset()
+    {
+        checkEntry();
+        return lineStart - base;
+    }
+    
+    /**
+     * @return the offset relative to the start of the content at which the
+     *      next line begins
+     */
+    public int nextLineOffset()
+    {
+        return position - base;
+    }
+    
+    /**
+     * @return 1 for entries with the "/1 " prefix, 0 for the old format
+     */
+    public int version()
+    {
+        checkEntry();
+        return version;
+    }
+    
+    /**
+     * @return offset of the current entry's CVSROOT relative to the start of
+     *      the content
+     */
+    int rootOffset()
+    {
+        checkEntry();
+        return root.start - base;
+    }
+    
+    /**
+     * @return the CVSROOT of the current entry; valid until the next call to
+     *      {@link #next()}
+     */
+    public CharSequence root()
+    {
+        checkEntry();
+        return root;
+    }
+    
+    /**
+     * @return the scrambled password of the current entry; valid until the
+     *      next call to {@link #next()}
+     */
+    public CharSequence scrambledPassword()
+    {
+        checkEntry();
+        return password;
+    }
+    
+    /**
+     * Compares the current entry's CVSROOT with the given root without
+     * allocating.
+     * 
+     * @param cvsRoot
+     *            the root to compare against
+     *            
+     * @return true if they are equal
+     */
+    public boolean rootEquals(CharSequence cvsRoot)
+    {
+        checkEntry();
+        return root.contentEquals(cvsRoot);
+    }
+    
+    /**
+     * Decodes the current entry's password into dst.
+     * 
+     * @param dst
+     *            array that receives the password in clear
+     * @param dstOffset
+     *            index in dst at which the password is written
+     *            
+     * @return the number of characters written
+     * 
+     * @see CvsPassword#decode(CharSequence, int, int, char[], int)
+     */
+    public int decodePassword(char[] dst, int dstOffset)
+    {
+        checkEntry();
+        return CvsPassword.decode(password, 0, password.length(), dst, dstOffset);
+    }
+    
+    /**
+     * @return the current entry's password in clear
+     */
+    public String decodePassword()
+    {
+        checkEntry();
+        char[] decoded = new char[CvsPassword.decodedLength(password)];
+        decodePassword(decoded, 0);
+        return String.valueOf(decoded);
+    }
+    
+    /**
+     * Releases the underlying file channel, if any. The mapping itself is
+     * released when this reader becomes unreachable.
+     */
+    public void close() throws IOException
+    {
+        lineStart = -1;
+        if (channel != null)
+        {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Reusable view of a range of the buffer as ISO-8859-1 characters.
+     */
+    private class ByteSequence implements CharSequence
+    {
+        private int start;
+        private int end;
+        
+        void set(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+        
+        public int length()
+        {
+            return end - start;
+        }
+
+        public char charAt(int index)
+        {
+            if (index < 0 || index >= end - start)
+            {
+                throw new IndexOutOfBoundsException("index=" + index);
+            }
+            return (char)(buffer.get(start + index) & 0xff);
+        }
+
+        public CharSequence subSequence(int from, int to)
+        {
+            return toString().subSequence(from, to);
+        }
+        
+        boolean contentEquals(CharSequence other)
+        {
+            int length = end - start;
+            if (other.length() != length)
+            {
+                return false;
+            }
+            
+            for (int i = 0; i < length; i++)
+            {
+                if ((char)(buffer.get(start + i) & 0xff) != other.charAt(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public String toString()
+        {
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++)
+            {
+                chars[i] = (char)(buffer.get(start + i) & 0xff);
+            }
+            return String.valueOf(chars);
+        }
+    }
+}
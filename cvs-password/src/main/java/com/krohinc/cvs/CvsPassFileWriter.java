@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>
+ * Writes entries in the .cvspass format, one per line:
+ * <pre>
+ * /1 :pserver:user@host:2401/repo Axyz
+ * </pre>
+ * 
+ * <p>
+ * Entries are staged in a single reusable direct buffer and written to the
+ * channel when it fills up, so writing an entry does not allocate. Passwords
+ * in clear can be written with {@link #writeClear(CharSequence, CharSequence)}
+ * which scrambles them straight into the output buffer.
+ * 
+ * <p>
+ * Instances of this class are not thread-safe.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassFileWriter implements Closeable, Flushable
+{
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private char[] scratch = new char[128];
+    
+    /**
+     * Creates a writer for the given channel.
+     * 
+     * @param channel
+     *            destination of the entries
+     * @param bufferSize
+     *            size in bytes of the staging buffer
+     */
+    public CvsPassFileWriter(WritableByteChannel channel, int bufferSize)
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+    
+    /**
+     * Opens the given .cvspass file for writing.
+     * 
+     * @param file
+     *            the .cvspass file
+     * @param append
+     *            true to add entries to the end of the file, false to
+     *            replace its contents
+     *            
+     * @return a new writer which must be closed by the caller
+     * 
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public static CvsPassFileWriter open(File file, boolean append) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file, append);
+        return new CvsPassFileWriter(out.getChannel(), DEFAULT_BUFFER_SIZE);
+    }
+    
+    /**
+     * Writes an entry whose password is already scrambled.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT, e.g. :pserver:user@host:2401/repo
+     * @param scrambledPassword
+     *            the password in the pserver scrambled form
+     *            
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    public void write(CharSequence cvsRoot, CharSequence scrambledPassword) throws IOException
+    {
+        writeHeader(cvsRoot);
+        put(scrambledPassword, 0, scrambledPassword.length());
+        put('\n');
+    }
+    
+    /**
+     * Writes an entry, scrambling the password in clear first.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT, e.g. :pserver:user@host:2401/repo
+     * @param clearText
+     *            the password in clear
+     *            
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    public void writeClear(CharSequence cvsRoot, CharSequence clearText) throws IOException
+    {
+        int length = CvsPassword.encodedLength(clearText.length());
+        if (scratch.length < length)
+        {
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        }
+        
+        // Encode before writing anything so an illegal
+        // character does not leave a partial line:
+        CvsPassword.encode(clearText, 0, clearText.length(), scratch, 0);
+        
+        writeHeader(cvsRoot);
+        for (int i = 0; i < length; i++)
+        {
+            put(scratch[i]);
+        }
+        put('\n');
+    }
+    
+    private void writeHeader(CharSequence cvsRoot) throws IOException
+    {
+        put('/');
+        put('1');
+        put(' ');
+        put(cvsRoot, 0, cvsRoot.length());
+        put(' ');
+    }
+    
+    private void put(CharSequence chars, int start, int end) throws IOException
+    {
+        for (int i = start; i < end; i++)
+        {
+            put(chars.charAt(i));
+        }
+    }
+    
+    private void put(char c) throws IOException
+    {
+        if (!buffer.hasRemaining())
+        {
+            drain();
+        }
+        buffer.put((byte)c);
+    }
+    
+    private void drain() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    /**
+     * Writes any staged entries to the channel.
+     */
+    public void flush() throws IOException
+    {
+        drain();
+    }
+    
+    /**
+     * Flushes staged entries and closes the channel.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            drain();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * <p>
+ * A persistent hash index from CVSROOT to the line of a .cvspass file that
+ * holds its password. Both the index and the .cvspass file are memory-mapped,
+ * so a lookup touches a handful of pages and nothing is loaded into the heap.
+ * Passwords stay scrambled in the .cvspass file and are decoded only when a
+ * lookup hits.
+ * 
+ * <p>
+ * The index is kept in a file next to the .cvspass file (".cvspass.idx" by
+ * default). It records how many bytes of the .cvspass file it covers and a
+ * fingerprint of those bytes, so {@link #update()} only parses entries
+ * appended since the last update. If the .cvspass file has shrunk or the
+ * covered bytes no longer match the fingerprint, as after cvs login or
+ * logout rewrites the file, the index is rebuilt from scratch. When a root
+ * occurs more than once the last occurrence wins.
+ * 
+ * <p>
+ * Index file layout, big-endian:
+ * <pre>
+ * magic "CVSIDX01" (8) | capacity (4) | count (4) | indexed length (8) | fingerprint (8)
+ * capacity slots of: root hash (4) | line offset + 1 (4), 0 when empty
+ * </pre>
+ * 
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassIndex implements Closeable
+{
+    private static final long MAGIC = 0x4356534944583031L; // "CVSIDX01"
+    private static final int HEADER_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int INDEXED_LENGTH_OFFSET = 16;
+    private static final int FINGERPRINT_OFFSET = 24;
+    private static final int MIN_CAPACITY = 1024;
+    
+    // 64-bit FNV-1a, used to fingerprint the indexed bytes:
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private final File cvsPassFile;
+    private final File indexFile;
+    
+    private RandomAccessFile indexRaf;
+    private MappedByteBuffer index;
+    private int capacity;
+    
+    private ByteBuffer data;
+    private CvsPassFileReader dataReader;
+    
+    /**
+     * Opens the index for a .cvspass file, creating or bringing it up to
+     * date as needed.
+     * 
+     * @param cvsPassFile
+     *            the .cvspass file
+     * @param indexFile
+     *            where the index is kept
+     *            
+     * @throws IOException
+     *             if either file cannot be read or written
+     */
+    public CvsPassIndex(File cvsPassFile, File indexFile) throws IOException
+    {
+        this.cvsPassFile = cvsPassFile;
+        this.indexFile = indexFile;
+        
+        if (!openIndex())
+        {
+            createIndex(MIN_CAPACITY);
+        }
+        update();
+    }
+    
+    /**
+     * Opens the index kept in [cvsPassFile].idx.
+     * 
+     * @see #CvsPassIndex(File, File)
+     */
+    public static CvsPassIndex open(File cvsPassFile) throws IOException
+    {
+        return new CvsPassIndex(cvsPassFile, 
+                new File(cvsPassFile.getParentFile(), cvsPassFile.getName() + ".idx"));
+    }
+    
+    /**
+     * @return true if an existing, valid index was mapped
+     */
+    private boolean openIndex() throws IOException
+    {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE)
+        {
+            return false;
+        }
+        
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        MappedByteBuffer mapped = raf.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        int mappedCapacity = mapped.getInt(CAPACITY_OFFSET);
+        
+        if (mapped.getLong(0) != MAGIC 
+                || Integer.bitCount(mappedCapacity) != 1
+                || raf.length() != HEADER_SIZE + mappedCapacity * 8L)
+        {
+            raf.close();
+            return false;
+        }
+        
+        indexRaf = raf;
+        index = mapped;
+        capacity = mappedCapacity;
+        return true;
+    }
+    
+    private void createIndex(int newCapacity) throws IOException
+    {
+        closeIndex();
+        
+        File temp = new File(indexFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try
+        {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + newCapacity * 8L);
+            MappedByteBuffer mapped = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            mapped.putLong(0, MAGIC);
+            mapped.putInt(CAPACITY_OFFSET, newCapacity);
+            mapped.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        Files.move(temp.toPath(), indexFile.toPath(), 
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!openIndex())
+        {
+            throw new IOException("Could not open new index " + indexFile);
+        }
+    }
+    
+    /**
+     * Indexes entries appended to the .cvspass file since the last update.
+     * Only complete, newline terminated lines are indexed.
+     * 
+     * @return the number of entries indexed
+     * 
+     * @throws IOException
+     *             if the files cannot be read or written
+     */
+    public synchronized int update() throws IOException
+    {
+        checkOpen();
+        mapData();
+        
+        long indexedLength = index.getLong(INDEXED_LENGTH_OFFSET);
+        long fingerprint = FNV_OFFSET_BASIS;
+        if (indexedLength <= data.limit())
+        {
+            fingerprint = fingerprint(fingerprint, 0, (int)indexedLength);
+        }
+        
+        if (indexedLength > data.limit() || 
+            (indexedLength > 0 && fingerprint != index.getLong(FINGERPRINT_OFFSET)))
+        {
+            // The file shrank or the indexed part changed, so it
+            // was rewritten:
+            clearSlots();
+            indexedLength = 0;
+            fingerprint = FNV_OFFSET_BASIS;
+        }
+        
+        int end = data.limit();
+        while (end > indexedLength && data.get(end - 1) != '\n')
+        {
+            end--;
+        }
+        if (end <= indexedLength)
+        {
+            return 0;
+        }
+        
+        ByteBuffer tail = data.duplicate();
+        tail.position((int)indexedLength).limit(end);
+        CvsPassFileReader reader = new CvsPassFileReader(tail);
+        
+        int added = 0;
+        while (reader.next())
+        {
+            put(reader.root(), (int)indexedLength + reader.lineOffset());
+            added++;
+        }
+        
+        index.putLong(FINGERPRINT_OFFSET, fingerprint(fingerprint, (int)indexedLength, end));
+        index.putLong(INDEXED_LENGTH_OFFSET, end);
+        return added;
+    }
+    
+    /**
+     * @return the fingerprint continued over the data bytes from start to end
+     */
+    private long fingerprint(long fingerprint, int start, int end)
+    {
+        long h = fingerprint;
+        for (int i = start; i < end; i++)
+        {
+            h = (h ^ (data.get(i) & 0xff)) * FNV_PRIME;
+        }
+        return h;
+    }
+    
+    /**
+     * Discards the index and indexes the whole .cvspass file again.
+     * 
+     * @return the number of entries indexed
+     */
+    public synchronized int rebuild() throws IOException
+    {
+        checkOpen();
+        clearSlots();
+        return update();
+    }
+    
+    private void clearSlots()
+    {
+        for (int i = 0; i < capacity; i++)
+        {
+            index.putLong(HEADER_SIZE + i * 8, 0);
+        }
+        index.putInt(COUNT_OFFSET, 0);
+        index.putLong(INDEXED_LENGTH_OFFSET, 0);
+        index.putLong(FINGERPRINT_OFFSET, 0);
+    }
+    
+    private void mapData() throws IOException
+    {
+        // Always mapped again: a file replaced by one of the same length
+        // would otherwise still be read through the old mapping.
+        long length = cvsPassFile.exists() ? cvsPassFile.length() : 0;
+        if (length == 0)
+        {
+            data = ByteBuffer.allocate(0);
+        }
+        else
+        {
+            RandomAccessFile raf = new RandomAccessFile(cvsPassFile, "r");
+            try
+            {
+                data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        dataReader = new CvsPassFileReader(data.duplicate());
+    }
+    
+    private void put(CharSequence cvsRoot, int lineOffset) throws IOException
+    {
+        int count = index.getInt(COUNT_OFFSET);
+        if ((count + 1) * 2 > capacity)
+        {
+            grow();
+            count = index.getInt(COUNT_OFFSET);
+        }
+        
+        int hash = hash(cvsRoot);
+        int slot = find(cvsRoot, hash);
+        if (slot >= 0)
+        {
+            // A later entry for the same root replaces the earlier one:
+            index.putInt(slotPosition(slot) + 4, lineOffset + 1);
+            return;
+        }
+        
+        insert(index, capacity, hash, lineOffset + 1);
+        index.putInt(COUNT_OFFSET, count + 1);
+    }
+    
+    private void grow() throws IOException
+    {
+        MappedByteBuffer old = index;
+        int oldCapacity = capacity;
+        long indexedLength = old.getLong(INDEXED_LENGTH_OFFSET);
+        long fingerprint = old.getLong(FINGERPRINT_OFFSET);
+        int count = old.getInt(COUNT_OFFSET);
+        
+        // Build the larger table in a new file and swap it in:
+        int newCapacity = oldCapacity * 2;
+        File temp = new File(indexFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try
+        {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + newCapacity * 8L);
+            MappedByteBuffer mapped = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            mapped.putLong(0, MAGIC);
+            mapped.putInt(CAPACITY_OFFSET, newCapacity);
+            mapped.putInt(COUNT_OFFSET, count);
+            mapped.putLong(INDEXED_LENGTH_OFFSET, indexedLength);
+            mapped.putLong(FINGERPRINT_OFFSET, fingerprint);
+            
+            for (int i = 0; i < oldCapacity; i++)
+            {
+                long slot = old.getLong(HEADER_SIZE + i * 8);
+                if (slot != 0)
+                {
+                    insert(mapped, newCapacity, (int)(slot >>> 32), (int)slot);
+                }
+            }
+            mapped.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        closeIndex();
+        Files.move(temp.toPath(), indexFile.toPath(), 
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!openIndex())
+        {
+            throw new IOException("Could not open grown index " + indexFile);
+        }
+    }
+    
+    private static void insert(ByteBuffer table, int tableCapacity, int hash, int value)
+    {
+        int mask = tableCapacity - 1;
+        int slot = hash & mask;
+        while (table.getLong(HEADER_SIZE + slot * 8) != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        table.putLong(HEADER_SIZE + slot * 8, ((long)hash << 32) | (value & 0xffffffffL));
+    }
+    
+    /**
+     * @return the slot holding the root, or -1
+     */
+    private int find(CharSequence cvsRoot, int hash)
+    {
+        int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+        {
+            long entry = index.getLong(slotPosition(slot));
+            if (entry == 0)
+            {
+                return -1;
+            }
+            
+            if ((int)(entry >>> 32) == hash)
+            {
+                dataReader.seek((int)entry - 1);
+                if (dataReader.next() && dataReader.rootEquals(cvsRoot))
+                {
+                    return slot;
+                }
+            }
+        }
+    }
+    
+    private static int slotPosition(int slot)
+    {
+        return HEADER_SIZE + slot * 8;
+    }
+    
+    /**
+     * Decodes the password for a root into dst.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT to look up
+     * @param dst
+     *            array that receives the password in clear
+     * @param dstOffset
+     *            index in dst at which the password is written
+     *            
+     * @return the number of characters written, or -1 if the root is not
+     *      indexed
+     */
+    public synchronized int lookup(CharSequence cvsRoot, char[] dst, int dstOffset)
+    {
+        checkOpen();
+        if (find(cvsRoot, hash(cvsRoot)) < 0)
+        {
+            return -1;
+        }
+        // find() leaves the reader on the matching entry:
+        return dataReader.decodePassword(dst, dstOffset);
+    }
+    
+    /**
+     * @param cvsRoot
+     *            the CVSROOT to look up
+     *            
+     * @return the password in clear, or null if the root is not indexed
+     */
+    public synchronized String lookup(CharSequence cvsRoot)
+    {
+        checkOpen();
+        if (find(cvsRoot, hash(cvsRoot)) < 0)
+        {
+            return null;
+        }
+        return dataReader.decodePassword();
+    }
+    
+    /**
+     * Appends an entry to the .cvspass file and indexes it.
+     * 
+     * @param cvsRoot
+     *            the CVSROOT
+     * @param clearText
+     *            the password in clear
+     */
+    public synchronized void append(CharSequence cvsRoot, CharSequence clearText) throws IOException
+    {
+        checkOpen();
+        CvsPassFileWriter writer = CvsPassFileWriter.open(cvsPassFile, true);
+        try
+        {
+            writer.writeClear(cvsRoot, clearText);
+        }
+        finally
+        {
+            writer.close();
+        }
+        update();
+    }
+    
+    /**
+     * @return the number of distinct roots indexed
+     */
+    public synchronized int size()
+    {
+        checkOpen();
+        return index.getInt(COUNT_OFFSET);
+    }
+    
+    private void checkOpen()
+    {
+        if (indexRaf == null)
+        {
+            throw new IllegalStateException("The index has been closed.");
+        }
+    }
+    
+    private void closeIndex() throws IOException
+    {
+        if (indexRaf != null)
+        {
+            index.force();
+            indexRaf.close();
+            indexRaf = null;
+            index = null;
+        }
+    }
+    
+    /**
+     * Flushes the index to disk and closes it.
+     */
+    public synchronized void close() throws IOException
+    {
+        closeIndex();
+        data = null;
+        dataReader = null;
+    }
+    
+    private static int hash(CharSequence chars)
+    {
+        int h = 0;
+        for (int i = 0; i < chars.length(); i++)
+        {
+            h = 31 * h + chars.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>
+ * Walks a directory tree in parallel and recovers every pserver credential
+ * found in .cvspass files and CVS/Root files. Each directory is a
+ * {@link RecursiveTask} on a {@link ForkJoinPool}, so idle workers steal
+ * subdirectories from busy ones. The results of all tasks are merged into a
+ * single {@link Report}.
+ * 
+ * <p>
+ * Passwords in .cvspass files are decoded. CVS/Root files only carry a
+ * password when it is given inline (:pserver:user:password@host:/repo); such
+ * passwords are in clear and are re-encoded so the report always carries both
+ * forms.
+ * 
+ * <p>
+ * Symbolic links to directories are not followed.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassScanner
+{
+    private static final String CVSPASS_FILE_NAME = ".cvspass";
+    private static final String CVS_DIR_NAME = "CVS";
+    private static final String ROOT_FILE_NAME = "Root";
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    
+    /**
+     * The caller's pool, or null if each scan runs on its own pool.
+     */
+    private final ForkJoinPool pool;
+    
+    /**
+     * Creates a scanner that runs each scan on a new pool sized to the
+     * number of available processors. The pool is shut down when the scan
+     * finishes.
+     */
+    public CvsPassScanner()
+    {
+        this.pool = null;
+    }
+    
+    /**
+     * @param pool
+     *            the pool the directory tasks are run on; it is left
+     *            running after each scan
+     */
+    public CvsPassScanner(ForkJoinPool pool)
+    {
+        if (pool == null)
+        {
+            throw new IllegalArgumentException("pool cannot be null");
+        }
+        this.pool = pool;
+    }
+    
+    /**
+     * Scans the tree rooted at the given directory.
+     * 
+     * @param root
+     *            the directory to start from
+     *            
+     * @return the merged report for the whole tree
+     */
+    public Report scan(Path root)
+    {
+        Report report;
+        if (pool != null)
+        {
+            report = pool.invoke(new DirectoryTask(root));
+        }
+        else
+        {
+            ForkJoinPool ownPool = new ForkJoinPool();
+            try
+            {
+                report = ownPool.invoke(new DirectoryTask(root));
+            }
+            finally
+            {
+                ownPool.shutdown();
+            }
+        }
+        report.sort();
+        return report;
+    }
+    
+    private static class DirectoryTask extends RecursiveTask<Report>
+    {
+        private final Path directory;
+        
+        DirectoryTask(Path directory)
+        {
+            this.directory = directory;
+        }
+        
+        @Override
+        protected Report compute()
+        {
+            Report report = new Report();
+            List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+            
+            try
+            {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+                try
+                {
+                    for (Path child : stream)
+                    {
+                        BasicFileAttributes attributes;
+                        try
+                        {
+                            attributes = Files.readAttributes(
+                                    child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        }
+                        catch (IOException e)
+                        {
+                            // Denied or deleted since it was listed; the
+                            // siblings are still scanned:
+                            report.errors.add(child + ": " + e);
+                            continue;
+                        }
+                        String name = child.getFileName().toString();
+                        
+                        if (attributes.isDirectory())
+                        {
+                            DirectoryTask subtask = new DirectoryTask(child);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                            
+                            if (CVS_DIR_NAME.equals(name))
+                            {
+                                Path rootFile = child.resolve(ROOT_FILE_NAME);
+                                if (Files.isRegularFile(rootFile))
+                                {
+                                    scanRootFile(rootFile, report);
+                                }
+                            }
+                        }
+                        else if (attributes.isRegularFile() && CVSPASS_FILE_NAME.equals(name))
+                        {
+                            scanCvsPassFile(child, report);
+                        }
+                    }
+                }
+                finally
+                {
+                    stream.close();
+                }
+            }
+            catch (IOException e)
+            {
+                report.errors.add(directory + ": " + e);
+            }
+            catch (DirectoryIteratorException e)
+            {
+                report.errors.add(directory + ": " + e.getCause());
+            }
+            
+            // Join in reverse fork order so the most recently
+            // forked tasks are run directly by this thread:
+            for (int i = subtasks.size() - 1; i >= 0; i--)
+            {
+                report.merge(subtasks.get(i).join());
+            }
+            
+            return report;
+        }
+        
+        /**
+         * Serial Version UID
+         */
+        private static final long serialVersionUID = 1L;
+    }
+    
+    private static void scanCvsPassFile(Path file, Report report)
+    {
+        try
+        {
+            CvsPassFileReader reader = CvsPassFileReader.open(file.toFile());
+            try
+            {
+                while (reader.next())
+                {
+                    String scrambled = reader.scrambledPassword().toString();
+                    String clear;
+                    try
+                    {
+                        clear = reader.decodePassword();
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        report.errors.add(file + ": " + reader.root() + ": " + e.getMessage());
+                        continue;
+                    }
+                    
+                    report.credentials.add(new Credential(
+                            file, reader.root().toString(), scrambled, clear));
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            report.errors.add(file + ": " + e);
+        }
+    }
+    
+    private static void scanRootFile(Path file, Report report)
+    {
+        String line;
+        try
+        {
+            BufferedReader reader = Files.newBufferedReader(file, ISO_8859_1);
+            try
+            {
+                line = reader.readLine();
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            report.errors.add(file + ": " + e);
+            return;
+        }
+        
+        if (line == null || !line.startsWith(":pserver:"))
+        {
+            return;
+        }
+        
+        // :pserver:user[:password]@host[:port]:/repo
+        String root = line.trim();
+        int userStart = ":pserver:".length();
+        int at = root.indexOf('@', userStart);
+        int colon = root.indexOf(':', userStart);
+        
+        String clear = null;
+        String scrambled = null;
+        if (at > 0 && colon > 0 && colon < at)
+        {
+            clear = root.substring(colon + 1, at);
+            root = root.substring(0, colon) + root.substring(at);
+            try
+            {
+                scrambled = CvsPassword.encode(clear);
+            }
+            catch (IllegalArgumentException e)
+            {
+                report.errors.add(file + ": " + root + ": " + e.getMessage());
+                return;
+            }
+        }
+        
+        report.credentials.add(new Credential(file, root, scrambled, clear));
+    }
+    
+    /**
+     * A credential found during a scan.
+     */
+    public static class Credential
+    {
+        private final Path source;
+        private final String cvsRoot;
+        private final String scrambledPassword;
+        private final String clearPassword;
+        
+        Credential(Path source, String cvsRoot, String scrambledPassword, String clearPassword)
+        {
+            this.source = source;
+            this.cvsRoot = cvsRoot;
+            this.scrambledPassword = scrambledPassword;
+            this.clearPassword = clearPassword;
+        }
+
+        /**
+         * @return the .cvspass or CVS/Root file the credential was found in
+         */
+        public Path getSource()
+        {
+            return source;
+        }
+
+        /**
+         * @return the CVSROOT without any inline password
+         */
+        public String getCvsRoot()
+        {
+            return cvsRoot;
+        }
+
+        /**
+         * @return the scrambled password, or null if the source had none
+         */
+        public String getScrambledPassword()
+        {
+            return scrambledPassword;
+        }
+
+        /**
+         * @return the password in clear, or null if the source had none
+         */
+        public String getClearPassword()
+        {
+            return clearPassword;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return source + "\t" + cvsRoot + "\t" + 
+                    (scrambledPassword == null ? "" : scrambledPassword) + "\t" + 
+                    (clearPassword == null ? "" : clearPassword);
+        }
+    }
+    
+    /**
+     * The merged result of a scan.
+     */
+    public static class Report
+    {
+        private final List<Credential> credentials = new ArrayList<Credential>();
+        private final List<String> errors = new ArrayList<String>();
+        
+        void merge(Report other)
+        {
+            credentials.addAll(other.credentials);
+            errors.addAll(other.errors);
+        }
+        
+        void sort()
+        {
+            Collections.sort(credentials, new Comparator<Credential>()
+            {
+                public int compare(Credential a, Credential b)
+                {
+                    int result = a.source.compareTo(b.source);
+                    return result != 0 ? result : a.cvsRoot.compareTo(b.cvsRoot);
+                }
+            });
+            Collections.sort(errors);
+        }
+        
+        /**
+         * @return all credentials found, ordered by source file
+         */
+        public List<Credential> getCredentials()
+        {
+            return Collections.unmodifiableList(credentials);
+        }
+        
+        /**
+         * @return descriptions of files or entries that could not be read
+         */
+        public List<String> getErrors()
+        {
+            return Collections.unmodifiableList(errors);
+        }
+        
+        /**
+         * Prints one tab separated line per credential followed by the
+         * errors.
+         * 
+         * @param out
+         *            where to print the report
+         */
+        public void print(PrintStream out)
+        {
+            for (Credential credential : credentials)
+            {
+                out.println(credential);
+            }
+            for (String error : errors)
+            {
+                out.println("ERROR\t" + error);
+            }
+        }
+    }
+    
+    public static void main(String[] args)
+    {
+        if (args.length != 1)
+        {
+            System.err.println("Usage: CvsPassScanner <directory>");
+            System.exit(2);
+        }
+        
+        Report report = new CvsPassScanner().scan(Paths.get(args[0]));
+        report.print(System.out);
+    }
+}
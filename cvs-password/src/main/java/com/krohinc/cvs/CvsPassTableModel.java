@@ -0,0 +1,356 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * <p>
+ * A TableModel over the entries of a memory-mapped .cvspass file. Loading
+ * records only three ints per entry (line, root offset and root length); cell
+ * values are parsed from the mapping, and passwords decoded, only when the
+ * table asks for them, which for a JTable means only for visible rows.
+ * 
+ * <p>
+ * Filtering and sorting produce an int[] of entry numbers rather than row
+ * objects. {@link #computeView(String, int)} does the work and may be called
+ * off the EDT; {@link #setView(int[])} installs the result on the EDT.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassTableModel extends AbstractTableModel
+{
+    public static final int ENTRY_COLUMN = 0;
+    public static final int ROOT_COLUMN = 1;
+    public static final int SCRAMBLED_COLUMN = 2;
+    public static final int PASSWORD_COLUMN = 3;
+    
+    private static final String[] COLUMN_NAMES = {"#", "CVSROOT", "Scrambled", "Password"};
+    
+    private final ByteBuffer data;
+    private final int entryCount;
+    private final int[] lineOffsets;
+    private final int[] rootOffsets;
+    private final int[] rootLengths;
+    
+    // Used on the EDT only:
+    private final CvsPassFileReader reader;
+    private int parsedEntry = -1;
+    private char[] decoded = new char[64];
+    private int[] view;
+    
+    private CvsPassTableModel(ByteBuffer data, int entryCount, 
+                              int[] lineOffsets, int[] rootOffsets, int[] rootLengths)
+    {
+        this.data = data;
+        this.entryCount = entryCount;
+        this.lineOffsets = lineOffsets;
+        this.rootOffsets = rootOffsets;
+        this.rootLengths = rootLengths;
+        this.reader = new CvsPassFileReader(data.duplicate());
+    }
+    
+    /**
+     * Maps and indexes a .cvspass file. This reads the whole file once, so
+     * call it off the EDT for large files.
+     * 
+     * @param file
+     *            the .cvspass file
+     *            
+     * @return a model over the file's entries
+     * 
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public static CvsPassTableModel load(File file) throws IOException
+    {
+        ByteBuffer data;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            long size = raf.length();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException(file + " is too large to map (" + size + " bytes).");
+            }
+            data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        int[] lineOffsets = new int[1024];
+        int[] rootOffsets = new int[1024];
+        int[] rootLengths = new int[1024];
+        int count = 0;
+        
+        CvsPassFileReader reader = new CvsPassFileReader(data.duplicate());
+        while (reader.next())
+        {
+            if (count == lineOffsets.length)
+            {
+                lineOffsets = grow(lineOffsets);
+                rootOffsets = grow(rootOffsets);
+                rootLengths = grow(rootLengths);
+            }
+            lineOffsets[count] = reader.lineOffset();
+            rootOffsets[count] = reader.rootOffset();
+            rootLengths[count] = reader.root().length();
+            count++;
+        }
+        
+        return new CvsPassTableModel(data, count, lineOffsets, rootOffsets, rootLengths);
+    }
+    
+    private static int[] grow(int[] array)
+    {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+    
+    /**
+     * @return the number of entries in the file, regardless of filtering
+     */
+    public int getEntryCount()
+    {
+        return entryCount;
+    }
+
+    public int getRowCount()
+    {
+        return view == null ? entryCount : view.length;
+    }
+
+    public int getColumnCount()
+    {
+        return COLUMN_NAMES.length;
+    }
+    
+    @Override
+    public String getColumnName(int column)
+    {
+        return COLUMN_NAMES[column];
+    }
+    
+    @Override
+    public Class<?> getColumnClass(int column)
+    {
+        return column == ENTRY_COLUMN ? Integer.class : String.class;
+    }
+
+    public Object getValueAt(int row, int column)
+    {
+        int entry = view == null ? row : view[row];
+        if (column == ENTRY_COLUMN)
+        {
+            return Integer.valueOf(entry + 1);
+        }
+        
+        if (entry != parsedEntry)
+        {
+            reader.seek(lineOffsets[entry]);
+            reader.next();
+            parsedEntry = entry;
+        }
+        
+        switch (column)
+        {
+            case ROOT_COLUMN:
+                return reader.root().toString();
+            case SCRAMBLED_COLUMN:
+                return reader.scrambledPassword().toString();
+            default:
+                CharSequence scrambled = reader.scrambledPassword();
+                if (decoded.length < scrambled.length())
+                {
+                    decoded = new char[scrambled.length() * 2];
+                }
+                int length = CvsPassword.tryDecode(scrambled, 0, scrambled.length(), decoded, 0);
+                return length < 0 ? "(invalid)" : new String(decoded, 0, length);
+        }
+    }
+    
+    /**
+     * Installs a view computed by {@link #computeView(String, int)}. Call on
+     * the EDT.
+     * 
+     * @param view
+     *            entry numbers to show, in order, or null to show every entry
+     *            in file order
+     */
+    public void setView(int[] view)
+    {
+        this.view = view;
+        fireTableDataChanged();
+    }
+    
+    /**
+     * Computes which entries to show and in which order. Only reads the
+     * mapping and the index, so it is safe to call from any thread.
+     * 
+     * @param filter
+     *            case-insensitive substring the CVSROOT must contain; null
+     *            or empty for no filter
+     * @param sortOrder
+     *            1 to sort by CVSROOT ascending, -1 descending, 0 for file
+     *            order
+     *            
+     * @return the view, or null if every entry is shown in file order
+     */
+    public int[] computeView(String filter, int sortOrder)
+    {
+        boolean filtering = filter != null && filter.length() > 0;
+        if (!filtering && sortOrder == 0)
+        {
+            return null;
+        }
+        
+        int[] rows = new int[entryCount];
+        int count = 0;
+        byte[] pattern = filtering ? lowerCase(filter) : null;
+        for (int i = 0; i < entryCount; i++)
+        {
+            if (pattern == null || rootContains(i, pattern))
+            {
+                rows[count++] = i;
+            }
+        }
+        
+        if (count < rows.length)
+        {
+            int[] trimmed = new int[count];
+            System.arraycopy(rows, 0, trimmed, 0, count);
+            rows = trimmed;
+        }
+        
+        if (sortOrder != 0)
+        {
+            sort(rows, new int[rows.length], 0, rows.length, sortOrder);
+        }
+        return rows;
+    }
+    
+    /**
+     * @return the filter as lower case ISO-8859-1 bytes; characters outside
+     *      ISO-8859-1 become 0, which never matches
+     */
+    private static byte[] lowerCase(String filter)
+    {
+        byte[] bytes = new byte[filter.length()];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            char c = Character.toLowerCase(filter.charAt(i));
+            bytes[i] = c > 0xff ? 0 : (byte)c;
+        }
+        return bytes;
+    }
+    
+    private boolean rootContains(int entry, byte[] pattern)
+    {
+        int start = rootOffsets[entry];
+        int last = start + rootLengths[entry] - pattern.length;
+        
+        for (int i = start; i <= last; i++)
+        {
+            int j = 0;
+            while (j < pattern.length && lowerCase(data.get(i + j)) == pattern[j])
+            {
+                j++;
+            }
+            if (j == pattern.length)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @return the byte lower cased as an ISO-8859-1 character, the same
+     *      rule {@link #lowerCase(String)} applies to the filter
+     */
+    private static byte lowerCase(byte b)
+    {
+        return (byte)Character.toLowerCase((char)(b & 0xff));
+    }
+    
+    private int compareRoots(int a, int b)
+    {
+        int aStart = rootOffsets[a];
+        int bStart = rootOffsets[b];
+        int length = Math.min(rootLengths[a], rootLengths[b]);
+        
+        for (int i = 0; i < length; i++)
+        {
+            int diff = (data.get(aStart + i) & 0xff) - (data.get(bStart + i) & 0xff);
+            if (diff != 0)
+            {
+                return diff;
+            }
+        }
+        return rootLengths[a] - rootLengths[b];
+    }
+    
+    /**
+     * Stable merge sort of rows[from, to) by CVSROOT.
+     */
+    private void sort(int[] rows, int[] scratch, int from, int to, int order)
+    {
+        if (to - from < 2)
+        {
+            return;
+        }
+        
+        int middle = (from + to) >>> 1;
+        sort(rows, scratch, from, middle, order);
+        sort(rows, scratch, middle, to, order);
+        
+        if (order * compareRoots(rows[middle - 1], rows[middle]) <= 0)
+        {
+            // Already in order.
+            return;
+        }
+        
+        System.arraycopy(rows, from, scratch, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++)
+        {
+            if (j >= to || (i < middle && order * compareRoots(scratch[i], scratch[j]) <= 0))
+            {
+                rows[k] = scratch[i++];
+            }
+            else
+            {
+                rows[k] = scratch[j++];
+            }
+        }
+    }
+    
+    /**
+     * Serial Version UID
+     */
+    private static final long serialVersionUID = 1L;
+}
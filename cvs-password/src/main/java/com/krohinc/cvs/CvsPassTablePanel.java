@@ -0,0 +1,243 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.BorderFactory;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * <p>
+ * Browses every entry of a .cvspass file in a table backed by a
+ * {@link CvsPassTableModel}. Typing in the filter field narrows the rows to
+ * CVSROOTs containing the text, and clicking the CVSROOT column header
+ * cycles between ascending, descending and file order. Filtering and
+ * sorting run on a background thread.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassTablePanel extends JPanel
+{
+    private static final int FILTER_DELAY_MILLIS = 150;
+    
+    private final CvsPassTableModel model;
+    private final JTable table;
+    private final JTextField filterField;
+    private final JLabel statusLabel;
+    private final Timer filterTimer;
+    
+    private int sortOrder;
+    private SwingWorker<int[], Void> viewWorker;
+    
+    public CvsPassTablePanel(CvsPassTableModel model)
+    {
+        super(new BorderLayout(5, 5));
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        this.model = model;
+        
+        table = new JTable(model);
+        table.setAutoCreateRowSorter(false);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(CvsPassTableModel.ENTRY_COLUMN).setPreferredWidth(60);
+        table.getColumnModel().getColumn(CvsPassTableModel.ROOT_COLUMN).setPreferredWidth(350);
+        table.getTableHeader().addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                int column = table.convertColumnIndexToModel(
+                        table.columnAtPoint(e.getPoint()));
+                if (column == CvsPassTableModel.ROOT_COLUMN)
+                {
+                    // None -> ascending -> descending -> none:
+                    sortOrder = sortOrder == 0 ? 1 : sortOrder == 1 ? -1 : 0;
+                    updateView();
+                }
+            }
+        });
+        
+        filterTimer = new Timer(FILTER_DELAY_MILLIS, new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                updateView();
+            }
+        });
+        filterTimer.setRepeats(false);
+        
+        filterField = new JTextField(30);
+        filterField.getDocument().addDocumentListener(new DocumentListener()
+        {
+            public void changedUpdate(DocumentEvent e)
+            {
+                filterTimer.restart();
+            }
+
+            public void insertUpdate(DocumentEvent e)
+            {
+                filterTimer.restart();
+            }
+
+            public void removeUpdate(DocumentEvent e)
+            {
+                filterTimer.restart();
+            }
+        });
+        
+        JPanel filterPanel = new JPanel(new BorderLayout(5, 5));
+        filterPanel.add(new JLabel("Filter CVSROOT:"), BorderLayout.LINE_START);
+        filterPanel.add(filterField);
+        
+        statusLabel = new JLabel();
+        updateStatus();
+        
+        add(filterPanel, BorderLayout.PAGE_START);
+        add(new JScrollPane(table));
+        add(statusLabel, BorderLayout.PAGE_END);
+    }
+    
+    private void updateView()
+    {
+        if (viewWorker != null)
+        {
+            viewWorker.cancel(false);
+        }
+        
+        final String filter = filterField.getText();
+        final int order = sortOrder;
+        statusLabel.setText("Updating...");
+        
+        viewWorker = new SwingWorker<int[], Void>()
+        {
+            @Override
+            protected int[] doInBackground()
+            {
+                return model.computeView(filter, order);
+            }
+            
+            @Override
+            protected void done()
+            {
+                if (isCancelled() || viewWorker != this)
+                {
+                    return;
+                }
+                viewWorker = null;
+                
+                try
+                {
+                    model.setView(get());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e)
+                {
+                    // Keep showing the previous view:
+                    Throwable cause = e.getCause();
+                    String message = cause.getMessage() != null ? 
+                            cause.getMessage() : cause.getClass().getName();
+                    statusLabel.setText("Could not update the view: " + message);
+                    return;
+                }
+                updateStatus();
+            }
+        };
+        viewWorker.execute();
+    }
+    
+    private void updateStatus()
+    {
+        String order = sortOrder == 0 ? "" : sortOrder > 0 ? ", sorted A-Z" : ", sorted Z-A";
+        statusLabel.setText(model.getRowCount() + " of " + model.getEntryCount() + 
+                " entries" + order);
+    }
+    
+    /**
+     * Loads a .cvspass file on a background thread and shows it in a new
+     * window. Call on the EDT.
+     * 
+     * @param parent
+     *            component used to position error messages
+     * @param file
+     *            the .cvspass file
+     */
+    public static void showFile(final Component parent, final File file)
+    {
+        new SwingWorker<CvsPassTableModel, Void>()
+        {
+            @Override
+            protected CvsPassTableModel doInBackground() throws Exception
+            {
+                return CvsPassTableModel.load(file);
+            }
+            
+            @Override
+            protected void done()
+            {
+                CvsPassTableModel model;
+                try
+                {
+                    model = get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch (ExecutionException e)
+                {
+                    JOptionPane.showMessageDialog(parent, 
+                            "Could not open " + file + ":\n" + e.getCause().getMessage(), 
+                            "Open .cvspass", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                
+                JFrame frame = new JFrame(file.getPath());
+                frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+                frame.add(new CvsPassTablePanel(model), BorderLayout.CENTER);
+                frame.setSize(800, 600);
+                frame.setLocationRelativeTo(parent);
+                frame.setVisible(true);
+            }
+        }.execute();
+    }
+    
+    /**
+     * Serial Version UID
+     */
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Keeps an in-memory view of a .cvspass file current as the file changes.
+ * A background thread waits on a {@link WatchService} for the file's
+ * directory and reloads only what changed:
+ * <ul>
+ * <li>When the file has grown and its previously read bytes are unchanged
+ * (same file key, same trailing bytes), only the appended region is read
+ * and parsed.</li>
+ * <li>Otherwise the file was rewritten or replaced. It is parsed in full and
+ * only the entries that differ from the current view are applied.</li>
+ * </ul>
+ * 
+ * <p>
+ * Each reload publishes a new immutable {@link Snapshot} through a volatile
+ * field, so readers never lock. Snapshots share structure: changes are
+ * stacked as small maps on top of larger ones and merged when a level grows
+ * to half the size of the one below. A reload therefore costs about as much
+ * as the change, not the whole file.
+ * 
+ * <p>
+ * Failed reloads on the watcher thread are passed to an {@link ErrorHandler}
+ * and the next reload reads the whole file again.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPassWatcher implements Closeable
+{
+    /**
+     * Number of bytes before the end of the read region that are compared to
+     * decide whether the file was only appended to.
+     */
+    private static final int FINGERPRINT_SIZE = 64;
+    
+    private static final Logger LOGGER = Logger.getLogger(CvsPassWatcher.class.getName());
+    
+    /**
+     * Receives the errors of reloads done by the watcher thread.
+     */
+    public interface ErrorHandler
+    {
+        /**
+         * @param file
+         *            the watched file
+         * @param cause
+         *            why the reload failed
+         */
+        void reloadFailed(Path file, Throwable cause);
+    }
+    
+    private final Path file;
+    private final ErrorHandler errorHandler;
+    private final WatchService watchService;
+    private final Thread thread;
+    
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    
+    // Reload state, guarded by this:
+    private Object fileKey;
+    private long readLength;
+    private byte[] fingerprint = new byte[0];
+    
+    /**
+     * Loads the file and starts watching it. Failed reloads are logged.
+     * 
+     * @param file
+     *            the .cvspass file; it need not exist yet
+     *            
+     * @throws IOException
+     *             if the directory cannot be watched or the file cannot be
+     *             read
+     */
+    public CvsPassWatcher(Path file) throws IOException
+    {
+        this(file, null);
+    }
+    
+    /**
+     * Loads the file and starts watching it.
+     * 
+     * @param file
+     *            the .cvspass file; it need not exist yet
+     * @param errorHandler
+     *            receives failed reloads, or null to log them
+     *            
+     * @throws IOException
+     *             if the directory cannot be watched or the file cannot be
+     *             read
+     */
+    public CvsPassWatcher(Path file, ErrorHandler errorHandler) throws IOException
+    {
+        this.file = file.toAbsolutePath();
+        this.errorHandler = errorHandler;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watchService, 
+                StandardWatchEventKinds.ENTRY_CREATE, 
+                StandardWatchEventKinds.ENTRY_MODIFY, 
+                StandardWatchEventKinds.ENTRY_DELETE);
+        
+        reload();
+        
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                watch();
+            }
+        }, "CvsPassWatcher " + this.file);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * @return the current view of the file; never null
+     */
+    public Snapshot getSnapshot()
+    {
+        return snapshot;
+    }
+    
+    private void watch()
+    {
+        try
+        {
+            while (true)
+            {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    Object context = event.context();
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || (context != null && file.getFileName().equals(context));
+                }
+                key.reset();
+                
+                if (changed)
+                {
+                    reloadFromWatcher();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Closed.
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // Closed.
+        }
+    }
+    
+    private void reloadFromWatcher()
+    {
+        try
+        {
+            reload();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // The file may be mid-write. Read it in full on the
+            // next event rather than trusting the partial state:
+            synchronized (this)
+            {
+                fileKey = null;
+            }
+            reportFailure(e);
+        }
+    }
+    
+    private void reportFailure(Throwable cause)
+    {
+        if (errorHandler != null)
+        {
+            errorHandler.reloadFailed(file, cause);
+        }
+        else
+        {
+            LOGGER.log(Level.WARNING, "Could not reload " + file, cause);
+        }
+    }
+    
+    /**
+     * Brings the snapshot up to date with the file now. Called by the
+     * watcher thread; may also be called directly.
+     * 
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public synchronized void reload() throws IOException
+    {
+        BasicFileAttributes attributes;
+        try
+        {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e)
+        {
+            applyRewrite(Collections.<String, String>emptyMap());
+            fileKey = null;
+            readLength = 0;
+            fingerprint = new byte[0];
+            return;
+        }
+        
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            long length = channel.size();
+            boolean appended = fileKey != null 
+                    && fileKey.equals(attributes.fileKey()) 
+                    && length >= readLength 
+                    && Arrays.equals(fingerprint, readFingerprint(channel, readLength));
+            
+            long start = appended ? readLength : 0;
+            if (appended && length == readLength)
+            {
+                return;
+            }
+            
+            ByteBuffer region = read(channel, start, length - start);
+            
+            // Only consume complete lines; a partial last line is picked
+            // up by the event that follows the rest of the write:
+            int end = region.limit();
+            while (end > 0 && region.get(end - 1) != '\n')
+            {
+                end--;
+            }
+            region.limit(end);
+            
+            Map<String, String> entries = new HashMap<String, String>();
+            CvsPassFileReader reader = new CvsPassFileReader(region);
+            while (reader.next())
+            {
+                entries.put(reader.root().toString(), reader.scrambledPassword().toString());
+            }
+            
+            if (appended)
+            {
+                snapshot = snapshot.apply(entries);
+            }
+            else
+            {
+                applyRewrite(entries);
+            }
+            
+            fileKey = attributes.fileKey();
+            readLength = start + end;
+            fingerprint = readFingerprint(channel, readLength);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Reads a region of the file into a heap buffer. Unlike a mapping, this
+     * is safe when another process truncates the file meanwhile; the region
+     * just comes back short.
+     */
+    private static ByteBuffer read(FileChannel channel, long start, long length) throws IOException
+    {
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("File is too large.");
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int)length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, start + buffer.position()) < 0)
+            {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    private static byte[] readFingerprint(FileChannel channel, long end) throws IOException
+    {
+        int size = (int)Math.min(FINGERPRINT_SIZE, end);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, end - size + buffer.position()) < 0)
+            {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+    
+    /**
+     * Publishes the difference between the current snapshot and the full
+     * contents of a rewritten file.
+     */
+    private void applyRewrite(Map<String, String> entries)
+    {
+        Snapshot current = snapshot;
+        Map<String, String> changes = new HashMap<String, String>();
+        
+        for (Map.Entry<String, String> entry : entries.entrySet())
+        {
+            if (!entry.getValue().equals(current.getScrambledPassword(entry.getKey())))
+            {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String root : current.roots())
+        {
+            if (!entries.containsKey(root))
+            {
+                changes.put(root, Snapshot.REMOVED);
+            }
+        }
+        
+        if (!changes.isEmpty())
+        {
+            snapshot = current.apply(changes);
+        }
+    }
+    
+    /**
+     * Stops watching the file.
+     */
+    public void close() throws IOException
+    {
+        watchService.close();
+        thread.interrupt();
+    }
+    
+    /**
+     * An immutable view of a .cvspass file, mapping CVSROOT to scrambled
+     * password.
+     */
+    public static final class Snapshot
+    {
+        /**
+         * Marks a root removed in a newer level. Compared by identity.
+         */
+        static final String REMOVED = new String("<removed>");
+        
+        static final Snapshot EMPTY = new Snapshot(
+                Collections.<Map<String, String>>emptyList(), 0, 0);
+        
+        /**
+         * Newest first; each level is at least twice the size of the one
+         * above it.
+         */
+        private final List<Map<String, String>> levels;
+        private final int size;
+        private final long generation;
+        
+        private Snapshot(List<Map<String, String>> levels, int size, long generation)
+        {
+            this.levels = levels;
+            this.size = size;
+            this.generation = generation;
+        }
+        
+        /**
+         * @param cvsRoot
+         *            the CVSROOT to look up
+         *            
+         * @return the scrambled password, or null if the root is not present
+         */
+        public String getScrambledPassword(String cvsRoot)
+        {
+            for (Map<String, String> level : levels)
+            {
+                String password = level.get(cvsRoot);
+                if (password != null)
+                {
+                    return password == REMOVED ? null : password;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * @param cvsRoot
+         *            the CVSROOT to look up
+         *            
+         * @return the password in clear, or null if the root is not present
+         */
+        public String decodePassword(String cvsRoot)
+        {
+            return CvsPassword.decode(getScrambledPassword(cvsRoot));
+        }
+        
+        /**
+         * @return the number of roots present
+         */
+        public int size()
+        {
+            return size;
+        }
+        
+        /**
+         * @return a number that increases with every published change
+         */
+        public long generation()
+        {
+            return generation;
+        }
+        
+        /**
+         * @return every root present; builds a new list
+         */
+        public List<String> roots()
+        {
+            List<String> roots = new ArrayList<String>(size);
+            for (int i = 0; i < levels.size(); i++)
+            {
+                for (Map.Entry<String, String> entry : levels.get(i).entrySet())
+                {
+                    if (entry.getValue() != REMOVED && !inNewerLevel(entry.getKey(), i))
+                    {
+                        roots.add(entry.getKey());
+                    }
+                }
+            }
+            return roots;
+        }
+        
+        private boolean inNewerLevel(String root, int level)
+        {
+            for (int i = 0; i < level; i++)
+            {
+                if (levels.get(i).containsKey(root))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * @param changes
+         *            root to scrambled password, or to REMOVED; not modified
+         *            
+         * @return a new snapshot with the changes applied
+         */
+        Snapshot apply(Map<String, String> changes)
+        {
+            int newSize = size;
+            for (Map.Entry<String, String> change : changes.entrySet())
+            {
+                boolean present = getScrambledPassword(change.getKey()) != null;
+                boolean removed = change.getValue() == REMOVED;
+                if (present && removed)
+                {
+                    newSize--;
+                }
+                else if (!present && !removed)
+                {
+                    newSize++;
+                }
+            }
+            
+            List<Map<String, String>> newLevels = new ArrayList<Map<String, String>>(levels.size() + 1);
+            newLevels.add(changes);
+            newLevels.addAll(levels);
+            
+            // Merge the newest level down while it is at least half the size
+            // of the next; this keeps the number of levels logarithmic:
+            while (newLevels.size() > 1 && newLevels.get(0).size() * 2 >= newLevels.get(1).size())
+            {
+                Map<String, String> merged = new HashMap<String, String>(newLevels.get(1));
+                merged.putAll(newLevels.get(0));
+                if (newLevels.size() == 2)
+                {
+                    // Nothing below to hide, so tombstones can go:
+                    Iterator<String> values = merged.values().iterator();
+                    while (values.hasNext())
+                    {
+                        if (values.next() == REMOVED)
+                        {
+                            values.remove();
+                        }
+                    }
+                }
+                newLevels.remove(0);
+                newLevels.set(0, merged);
+            }
+            
+            return new Snapshot(newLevels, newSize, generation + 1);
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.krohinc.cvs;
 
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+
 /**
  * A simple class for encoding and decoding passwords for CVS pserver protocol.
  * Can be used to recover forgotten passwords.
@@ -35,6 +38,28 @@ public class CvsPassword
             121, 117, 104, 101, 100, 69, 73, 99, 63, 94, 93, 39, 37, 61, 48,
             58, 113, 32, 90, 44, 98, 60, 51, 33, 97, 62, 77, 84, 80, 85};
 
+    /**
+     * Prefix written in front of every encoded password.
+     */
+    private static final char ENCODED_PREFIX = 'A';
+
+    /**
+     * One bit per character in 0 - 127; a set bit means the character has a
+     * mapping in the lookup table. Built once from the table so that
+     * validation is a single shift and mask.
+     */
+    private static final long[] LEGAL_CHARS = new long[2];
+    static
+    {
+        for (char c = 0; c < LOOKUP_TABLE.length; c++)
+        {
+            if (LOOKUP_TABLE[c] != 0)
+            {
+                LEGAL_CHARS[c >>> 6] |= 1L << c;
+            }
+        }
+    }
+
     /**
      * Encodes a CVS password to be used in .cvspass file. Throws an exception
      * if clearText is null, if a character is found outside the 0 - 126 range, or
@@ -47,24 +72,170 @@ public class CvsPassword
      */
     public static String encode(String clearText)
     {
+        char[] encoded = new char[encodedLength(clearText.length())];
+        encode(clearText, 0, clearText.length(), encoded, 0);
+        return String.valueOf(encoded);
+    }
+
+    /**
+     * Encodes the characters clearText[offset, offset + length) into dst
+     * starting at dstOffset. No objects are allocated.
+     * 
+     * @param clearText
+     *            array holding the password in clear
+     * @param offset
+     *            index of the first clear character
+     * @param length
+     *            number of clear characters
+     * @param dst
+     *            array that receives the encoded password
+     * @param dstOffset
+     *            index in dst at which the encoded password is written
+     * 
+     * @return the number of characters written to dst, which is always
+     *      {@link #encodedLength(int) encodedLength(length)}
+     */
+    public static int encode(char[] clearText, int offset, int length, 
+                             char[] dst, int dstOffset)
+    {
+        checkRange(clearText.length, offset, length);
+        checkRange(dst.length, dstOffset, encodedLength(length));
+        long startNanos = CvsPasswordMetrics.start();
+        
         // First character of encoded version is A:
-        char[] encoded = new char[clearText.length() + 1];
-        encoded[0] = 'A';
+        dst[dstOffset++] = ENCODED_PREFIX;
         
-        // Skip the first character:
-        int counter = 1;
-        for (char c : clearText.toCharArray())
+        for (int i = offset, end = offset + length; i < end; i++)
         {
-            if (c == '`' || c == '$' || c < 32)
-            {
-                throw new IllegalArgumentException(
-                        "Illegal character was found in clear password.");
-            }
-            
-            encoded[counter++] = LOOKUP_TABLE[c];
+            dst[dstOffset++] = scramble(clearText[i]);
         }
+        
+        CvsPasswordMetrics.encoded(length, startNanos);
+        return length + 1;
+    }
 
-        return String.valueOf(encoded);
+    /**
+     * Encodes the characters clearText[start, end) into dst starting at
+     * dstOffset. No objects are allocated.
+     * 
+     * @param clearText
+     *            sequence holding the password in clear
+     * @param start
+     *            index of the first clear character
+     * @param end
+     *            index after the last clear character
+     * @param dst
+     *            array that receives the encoded password
+     * @param dstOffset
+     *            index in dst at which the encoded password is written
+     * 
+     * @return the number of characters written to dst
+     */
+    public static int encode(CharSequence clearText, int start, int end, 
+                             char[] dst, int dstOffset)
+    {
+        int length = end - start;
+        checkRange(clearText.length(), start, length);
+        checkRange(dst.length, dstOffset, encodedLength(length));
+        long startNanos = CvsPasswordMetrics.start();
+        
+        dst[dstOffset++] = ENCODED_PREFIX;
+        
+        for (int i = start; i < end; i++)
+        {
+            dst[dstOffset++] = scramble(clearText.charAt(i));
+        }
+        
+        CvsPasswordMetrics.encoded(length, startNanos);
+        return length + 1;
+    }
+
+    /**
+     * Encodes the remaining characters of clearText into dst. Both
+     * buffers' positions are advanced. Nothing is consumed or written
+     * if dst does not have enough space remaining.
+     * 
+     * @param clearText
+     *            buffer holding the password in clear
+     * @param dst
+     *            buffer that receives the encoded password
+     * 
+     * @return the number of characters written to dst
+     * 
+     * @throws BufferOverflowException
+     *             if dst has fewer than clearText.remaining() + 1 characters
+     *             remaining
+     */
+    public static int encode(CharBuffer clearText, CharBuffer dst)
+    {
+        int length = clearText.remaining();
+        if (dst.remaining() < encodedLength(length))
+        {
+            throw new BufferOverflowException();
+        }
+        
+        if (clearText.hasArray() && dst.hasArray())
+        {
+            int written = encode(clearText.array(), 
+                                 clearText.arrayOffset() + clearText.position(), length, 
+                                 dst.array(), 
+                                 dst.arrayOffset() + dst.position());
+            clearText.position(clearText.limit());
+            dst.position(dst.position() + written);
+            return written;
+        }
+        
+        long startNanos = CvsPasswordMetrics.start();
+        
+        // Validate before writing so a bad character leaves both
+        // buffers untouched:
+        for (int i = clearText.position(), end = clearText.limit(); i < end; i++)
+        {
+            scramble(clearText.get(i));
+        }
+        
+        dst.put(ENCODED_PREFIX);
+        while (clearText.hasRemaining())
+        {
+            dst.put(scramble(clearText.get()));
+        }
+        
+        CvsPasswordMetrics.encoded(length, startNanos);
+        return length + 1;
+    }
+
+    /**
+     * Encodes every password in clearTexts into dst back to back, in one
+     * pass. The end index (exclusive) of the i-th encoded password within
+     * dst is stored in ends[i]; the i-th password therefore occupies
+     * dst[i == 0 ? dstOffset : ends[i - 1], ends[i]).
+     * 
+     * @param clearTexts
+     *            the passwords in clear
+     * @param dst
+     *            array that receives the encoded passwords
+     * @param dstOffset
+     *            index in dst at which the first encoded password is written
+     * @param ends
+     *            array that receives the end index of each encoded password,
+     *            must be at least as long as clearTexts
+     * 
+     * @return the total number of characters written to dst
+     */
+    public static int encodeAll(CharSequence[] clearTexts, char[] dst, 
+                                int dstOffset, int[] ends)
+    {
+        checkRange(ends.length, 0, clearTexts.length);
+        
+        int position = dstOffset;
+        for (int i = 0; i < clearTexts.length; i++)
+        {
+            CharSequence clearText = clearTexts[i];
+            position += encode(clearText, 0, clearText.length(), dst, position);
+            ends[i] = position;
+        }
+        
+        return position - dstOffset;
     }
 
     /**
@@ -82,27 +253,442 @@ public class CvsPassword
         
         if (encodedPassword != null && encodedPassword.length() > 0)
         {
-            if (encodedPassword.startsWith("A"))
+            char[] decoded = new char[decodedLength(encodedPassword)];
+            decode(encodedPassword, 0, encodedPassword.length(), decoded, 0);
+            rtn = String.valueOf(decoded);
+        }
+        
+        return rtn;
+    }
+
+    /**
+     * Decodes the characters encoded[offset, offset + length) into dst
+     * starting at dstOffset. A leading 'A' is skipped. No objects are
+     * allocated.
+     * 
+     * @param encoded
+     *            array holding the encoded password
+     * @param offset
+     *            index of the first encoded character
+     * @param length
+     *            number of encoded characters
+     * @param dst
+     *            array that receives the decoded password
+     * @param dstOffset
+     *            index in dst at which the decoded password is written
+     * 
+     * @return the number of characters written to dst
+     */
+    public static int decode(char[] encoded, int offset, int length, 
+                             char[] dst, int dstOffset)
+    {
+        checkRange(encoded.length, offset, length);
+        
+        if (length > 0 && encoded[offset] == ENCODED_PREFIX)
+        {
+            offset++;
+            length--;
+        }
+        checkRange(dst.length, dstOffset, length);
+        long startNanos = CvsPasswordMetrics.start();
+        
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            dst[dstOffset++] = scramble(encoded[i]);
+        }
+        
+        CvsPasswordMetrics.decoded(length, startNanos);
+        return length;
+    }
+
+    /**
+     * Decodes the characters encoded[start, end) into dst starting at
+     * dstOffset. A leading 'A' is skipped. No objects are allocated.
+     * 
+     * @param encoded
+     *            sequence holding the encoded password
+     * @param start
+     *            index of the first encoded character
+     * @param end
+     *            index after the last encoded character
+     * @param dst
+     *            array that receives the decoded password
+     * @param dstOffset
+     *            index in dst at which the decoded password is written
+     * 
+     * @return the number of characters written to dst
+     */
+    public static int decode(CharSequence encoded, int start, int end, 
+                             char[] dst, int dstOffset)
+    {
+        checkRange(encoded.length(), start, end - start);
+        
+        if (start < end && encoded.charAt(start) == ENCODED_PREFIX)
+        {
+            start++;
+        }
+        int length = end - start;
+        checkRange(dst.length, dstOffset, length);
+        long startNanos = CvsPasswordMetrics.start();
+        
+        for (int i = start; i < end; i++)
+        {
+            dst[dstOffset++] = scramble(encoded.charAt(i));
+        }
+        
+        CvsPasswordMetrics.decoded(length, startNanos);
+        return length;
+    }
+
+    /**
+     * Decodes the remaining characters of encoded into dst. Both
+     * buffers' positions are advanced. Nothing is consumed or written
+     * if dst does not have enough space remaining.
+     * 
+     * @param encoded
+     *            buffer holding the encoded password
+     * @param dst
+     *            buffer that receives the decoded password
+     * 
+     * @return the number of characters written to dst
+     * 
+     * @throws BufferOverflowException
+     *             if dst does not have room for the decoded password
+     */
+    public static int decode(CharBuffer encoded, CharBuffer dst)
+    {
+        int length = decodedLength(encoded);
+        if (dst.remaining() < length)
+        {
+            throw new BufferOverflowException();
+        }
+        
+        if (encoded.hasArray() && dst.hasArray())
+        {
+            int written = decode(encoded.array(), 
+                                 encoded.arrayOffset() + encoded.position(), 
+                                 encoded.remaining(), 
+                                 dst.array(), 
+                                 dst.arrayOffset() + dst.position());
+            encoded.position(encoded.limit());
+            dst.position(dst.position() + written);
+            return written;
+        }
+        
+        long startNanos = CvsPasswordMetrics.start();
+        int start = encoded.limit() - length;
+        for (int i = start, end = encoded.limit(); i < end; i++)
+        {
+            scramble(encoded.get(i));
+        }
+        
+        encoded.position(start);
+        while (encoded.hasRemaining())
+        {
+            dst.put(scramble(encoded.get()));
+        }
+        
+        CvsPasswordMetrics.decoded(length, startNanos);
+        return length;
+    }
+
+    /**
+     * Decodes every password in encodedPasswords into dst back to back, in
+     * one pass. The end index (exclusive) of the i-th decoded password
+     * within dst is stored in ends[i].
+     * 
+     * @param encodedPasswords
+     *            the encoded passwords
+     * @param dst
+     *            array that receives the decoded passwords
+     * @param dstOffset
+     *            index in dst at which the first decoded password is written
+     * @param ends
+     *            array that receives the end index of each decoded password,
+     *            must be at least as long as encodedPasswords
+     * 
+     * @return the total number of characters written to dst
+     */
+    public static int decodeAll(CharSequence[] encodedPasswords, char[] dst, 
+                                int dstOffset, int[] ends)
+    {
+        checkRange(ends.length, 0, encodedPasswords.length);
+        
+        int position = dstOffset;
+        for (int i = 0; i < encodedPasswords.length; i++)
+        {
+            CharSequence encoded = encodedPasswords[i];
+            position += decode(encoded, 0, encoded.length(), dst, position);
+            ends[i] = position;
+        }
+        
+        return position - dstOffset;
+    }
+
+    /**
+     * @param c
+     *            a character
+     * 
+     * @return true if the character can be encoded or decoded
+     */
+    public static boolean isLegal(char c)
+    {
+        return c < 128 && (LEGAL_CHARS[c >>> 6] & (1L << c)) != 0;
+    }
+
+    /**
+     * Finds the first character in chars[start, end) that cannot be encoded
+     * or decoded. No exception is thrown for illegal characters.
+     * 
+     * @param chars
+     *            the characters to check
+     * @param start
+     *            index of the first character to check
+     * @param end
+     *            index after the last character to check
+     * 
+     * @return the index of the first illegal character, or -1 if all
+     *      characters are legal
+     */
+    public static int indexOfIllegal(CharSequence chars, int start, int end)
+    {
+        checkRange(chars.length(), start, end - start);
+        
+        for (int i = start; i < end; i++)
+        {
+            if (!isLegal(chars.charAt(i)))
             {
-                rtn = encode(encodedPassword.substring(1)).substring(1);
+                return i;
             }
-            else
+        }
+        return -1;
+    }
+
+    /**
+     * Array form of {@link #indexOfIllegal(CharSequence, int, int)}.
+     * 
+     * @return the index of the first illegal character in
+     *      chars[offset, offset + length), or -1 if all characters are legal
+     */
+    public static int indexOfIllegal(char[] chars, int offset, int length)
+    {
+        checkRange(chars.length, offset, length);
+        
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            if (!isLegal(chars[i]))
             {
-                rtn = encode(encodedPassword).substring(1);
+                return i;
             }
         }
+        return -1;
+    }
+
+    /**
+     * Like {@link #encode(CharSequence, int, int, char[], int)} but reports an
+     * illegal character through the return value instead of throwing. On
+     * failure the contents of dst are unspecified.
+     * 
+     * @return the number of characters written to dst, or -(i + 1) where i
+     *      is the index in clearText of the first illegal character
+     */
+    public static int tryEncode(CharSequence clearText, int start, int end, 
+                                char[] dst, int dstOffset)
+    {
+        int length = end - start;
+        checkRange(clearText.length(), start, length);
+        checkRange(dst.length, dstOffset, encodedLength(length));
+        long startNanos = CvsPasswordMetrics.start();
         
-        return rtn;
+        dst[dstOffset++] = ENCODED_PREFIX;
+        
+        for (int i = start; i < end; i++)
+        {
+            char c = clearText.charAt(i);
+            if (!isLegal(c))
+            {
+                CvsPasswordMetrics.rejected();
+                return -(i + 1);
+            }
+            dst[dstOffset++] = LOOKUP_TABLE[c];
+        }
+        
+        CvsPasswordMetrics.encoded(length, startNanos);
+        return length + 1;
+    }
+
+    /**
+     * Array form of
+     * {@link #tryEncode(CharSequence, int, int, char[], int)}.
+     * 
+     * @return the number of characters written to dst, or -(i + 1) where i
+     *      is the index in clearText of the first illegal character
+     */
+    public static int tryEncode(char[] clearText, int offset, int length, 
+                                char[] dst, int dstOffset)
+    {
+        checkRange(clearText.length, offset, length);
+        checkRange(dst.length, dstOffset, encodedLength(length));
+        long startNanos = CvsPasswordMetrics.start();
+        
+        dst[dstOffset++] = ENCODED_PREFIX;
+        
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            char c = clearText[i];
+            if (!isLegal(c))
+            {
+                CvsPasswordMetrics.rejected();
+                return -(i + 1);
+            }
+            dst[dstOffset++] = LOOKUP_TABLE[c];
+        }
+        
+        CvsPasswordMetrics.encoded(length, startNanos);
+        return length + 1;
+    }
+
+    /**
+     * Like {@link #decode(CharSequence, int, int, char[], int)} but reports an
+     * illegal character through the return value instead of throwing. On
+     * failure the contents of dst are unspecified.
+     * 
+     * @return the number of characters written to dst, or -(i + 1) where i
+     *      is the index in encoded of the first illegal character
+     */
+    public static int tryDecode(CharSequence encoded, int start, int end, 
+                                char[] dst, int dstOffset)
+    {
+        checkRange(encoded.length(), start, end - start);
+        
+        if (start < end && encoded.charAt(start) == ENCODED_PREFIX)
+        {
+            start++;
+        }
+        int length = end - start;
+        checkRange(dst.length, dstOffset, length);
+        long startNanos = CvsPasswordMetrics.start();
+        
+        for (int i = start; i < end; i++)
+        {
+            char c = encoded.charAt(i);
+            if (!isLegal(c))
+            {
+                CvsPasswordMetrics.rejected();
+                return -(i + 1);
+            }
+            dst[dstOffset++] = LOOKUP_TABLE[c];
+        }
+        
+        CvsPasswordMetrics.decoded(length, startNanos);
+        return length;
+    }
+
+    /**
+     * Array form of
+     * {@link #tryDecode(CharSequence, int, int, char[], int)}.
+     * 
+     * @return the number of characters written to dst, or -(i + 1) where i
+     *      is the index in encoded of the first illegal character
+     */
+    public static int tryDecode(char[] encoded, int offset, int length, 
+                                char[] dst, int dstOffset)
+    {
+        checkRange(encoded.length, offset, length);
+        
+        if (length > 0 && encoded[offset] == ENCODED_PREFIX)
+        {
+            offset++;
+            length--;
+        }
+        checkRange(dst.length, dstOffset, length);
+        long startNanos = CvsPasswordMetrics.start();
+        
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            char c = encoded[i];
+            if (!isLegal(c))
+            {
+                CvsPasswordMetrics.rejected();
+                return -(i + 1);
+            }
+            dst[dstOffset++] = LOOKUP_TABLE[c];
+        }
+        
+        CvsPasswordMetrics.decoded(length, startNanos);
+        return length;
+    }
+
+    /**
+     * @param clearTextLength
+     *            length of a password in clear
+     * 
+     * @return the length of the encoded form of the password
+     */
+    public static int encodedLength(int clearTextLength)
+    {
+        return clearTextLength + 1;
+    }
+
+    /**
+     * @param encoded
+     *            an encoded password
+     * 
+     * @return the length of the decoded form of the password
+     */
+    public static int decodedLength(CharSequence encoded)
+    {
+        int length = encoded.length();
+        if (length > 0 && encoded.charAt(0) == ENCODED_PREFIX)
+        {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * Maps a single character through the lookup table. The mapping is
+     * its own inverse so it is used for both encoding and decoding.
+     */
+    private static char scramble(char c)
+    {
+        if (!isLegal(c))
+        {
+            CvsPasswordMetrics.rejected();
+            throw new IllegalArgumentException(
+                    "Illegal character was found in clear password.");
+        }
+        
+        return LOOKUP_TABLE[c];
+    }
+
+    /**
+     * Maps a single character through the lookup table without validating.
+     * 
+     * @return the mapped character, or 0 if c is not legal
+     */
+    static char lookup(char c)
+    {
+        return isLegal(c) ? LOOKUP_TABLE[c] : 0;
+    }
+
+    private static void checkRange(int arrayLength, int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset > arrayLength - length)
+        {
+            throw new IndexOutOfBoundsException(
+                    "offset=" + offset + ", length=" + length + 
+                    ", arrayLength=" + arrayLength);
+        }
     }
     
-    public static void main(String[] sArgs)
+    /**
+     * Runs the command line interface.
+     * 
+     * @see CvsPasswordCli
+     */
+    public static void main(String[] args)
     {
-        final String TEST_WORD = "password";
-        String encoded = CvsPassword.encode(TEST_WORD);
-        System.out.println("Encoded: <" + encoded + ">");
-        String decoded = CvsPassword.decode(encoded);
-        System.out.println("Decoded: <" + decoded + ">");
-        System.out.println(decoded.equals(TEST_WORD) ? "Test Passed" : "Test Failed");
+        CvsPasswordCli.main(args);
     }
 }
-
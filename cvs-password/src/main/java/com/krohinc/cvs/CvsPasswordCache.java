@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A size-bounded cache of decoded passwords keyed by their scrambled form, for
+ * callers that decode the same passwords over and over. Callers that do not
+ * need caching should keep using {@link CvsPassword#decode(String)}.
+ * 
+ * <p>
+ * The cache is split into independently locked segments, each an
+ * access-ordered LRU map, so threads working on different keys rarely
+ * contend. Eviction is LRU within a segment. Hit, miss and eviction counts
+ * are kept per segment and summed on request.
+ * 
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPasswordCache
+{
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    
+    private final Segment[] segments;
+    
+    /**
+     * @param maximumSize
+     *            the number of entries held before the least recently used
+     *            are evicted
+     */
+    public CvsPasswordCache(int maximumSize)
+    {
+        this(maximumSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+    
+    /**
+     * @param maximumSize
+     *            the number of entries held before the least recently used
+     *            are evicted
+     * @param concurrencyLevel
+     *            the expected number of threads using the cache at once; it
+     *            is rounded up to a power of two to give the segment count
+     */
+    public CvsPasswordCache(int maximumSize, int concurrencyLevel)
+    {
+        if (maximumSize <= 0 || concurrencyLevel <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "maximumSize and concurrencyLevel must be positive.");
+        }
+        
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && segmentCount < maximumSize)
+        {
+            segmentCount <<= 1;
+        }
+        
+        int segmentCapacity = (maximumSize + segmentCount - 1) / segmentCount;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+    
+    /**
+     * Returns the decoded form of encodedPassword, decoding and caching it on a
+     * miss. Null and empty input return null and are not cached.
+     * 
+     * @param encodedPassword
+     *            the encoded password to be decoded
+     *            
+     * @return the decoded password or null if the input was null or empty
+     * 
+     * @throws IllegalArgumentException
+     *             if the password contains an illegal character; nothing is
+     *             cached in that case
+     *             
+     * @see CvsPassword#decode(String)
+     */
+    public String decode(String encodedPassword)
+    {
+        if (encodedPassword == null || encodedPassword.length() == 0)
+        {
+            return null;
+        }
+        
+        Segment segment = segmentFor(encodedPassword);
+        String decoded = segment.get(encodedPassword);
+        if (decoded == null)
+        {
+            // Decode outside of the lock; a racing thread may decode
+            // the same key, which is harmless:
+            decoded = CvsPassword.decode(encodedPassword);
+            segment.put(encodedPassword, decoded);
+        }
+        return decoded;
+    }
+    
+    private Segment segmentFor(String key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+    
+    /**
+     * @return the number of lookups that were served from the cache
+     */
+    public long hitCount()
+    {
+        long total = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                total += segment.hits;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * @return the number of lookups that had to decode
+     */
+    public long missCount()
+    {
+        long total = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                total += segment.misses;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * @return the number of entries removed to stay within the maximum size
+     */
+    public long evictionCount()
+    {
+        long total = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                total += segment.evictions;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * @return the number of entries currently cached
+     */
+    public int size()
+    {
+        int total = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                total += segment.size();
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Removes all entries. The counters are not reset.
+     */
+    public void clear()
+    {
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "CvsPasswordCache[size=" + size() + ", hits=" + hitCount() + 
+                ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+    }
+    
+    /**
+     * An access-ordered map guarded by its own monitor.
+     */
+    private static class Segment extends LinkedHashMap<String, String>
+    {
+        private final int capacity;
+        
+        long hits;
+        long misses;
+        long evictions;
+        
+        Segment(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+        
+        synchronized String get(String key)
+        {
+            String value = super.get(key);
+            if (value != null)
+            {
+                hits++;
+            }
+            else
+            {
+                misses++;
+            }
+            return value;
+        }
+        
+        @Override
+        public synchronized String put(String key, String value)
+        {
+            return super.put(key, value);
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            if (size() > capacity)
+            {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Serial Version UID
+         */
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Command line front end for {@link CvsPassword}. Reads newline delimited
+ * passwords from stdin or files and writes the encoded or decoded form of
+ * each line to stdout.
+ * 
+ * <pre>
+ * CvsPassword (-e | -d) [-t threads] [-b bufferSize] [file | -]...
+ * </pre>
+ * 
+ * <p>
+ * Input is read in large chunks that end on a line boundary. Each chunk is
+ * transformed byte for byte into a reusable output buffer that is written
+ * with a single channel write, so no String is created per line. With
+ * -t greater than 1, chunks are transformed by a pool of worker threads and
+ * written in input order.
+ * 
+ * <p>
+ * A line containing an illegal character is written as an empty line, so
+ * output lines stay aligned with input lines, and reported on stderr. The
+ * exit status is 1 if any line was rejected and 2 on a usage or I/O error.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPasswordCli
+{
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    
+    private final boolean encode;
+    private final int bufferSize;
+    private final int threads;
+    private final WritableByteChannel out;
+    private final PrintStream err;
+    
+    private long errorCount;
+    
+    /**
+     * @param encode
+     *            true to encode lines, false to decode them
+     * @param bufferSize
+     *            size in bytes of each input chunk; also the longest line
+     *            accepted
+     * @param threads
+     *            number of worker threads; 1 processes on the calling thread
+     * @param out
+     *            destination for the transformed lines
+     * @param err
+     *            destination for error messages
+     */
+    public CvsPasswordCli(boolean encode, int bufferSize, int threads, 
+                          WritableByteChannel out, PrintStream err)
+    {
+        this.encode = encode;
+        this.bufferSize = bufferSize;
+        this.threads = threads;
+        this.out = out;
+        this.err = err;
+    }
+    
+    /**
+     * @return the number of lines rejected so far
+     */
+    public long getErrorCount()
+    {
+        return errorCount;
+    }
+    
+    /**
+     * Transforms every line of the channel and writes the result.
+     * 
+     * @param in
+     *            the input
+     * @param name
+     *            name of the input used in error messages
+     *            
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    public void process(ReadableByteChannel in, String name) throws IOException
+    {
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        Deque<Chunk> free = new ArrayDeque<Chunk>();
+        Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        int maxChunks = threads > 1 ? threads * 2 : 1;
+        
+        byte[] carry = new byte[bufferSize];
+        int carryLength = 0;
+        long firstLine = 1;
+        boolean eof = false;
+        
+        try
+        {
+            while (!eof)
+            {
+                // Recycle the oldest chunk once enough are in flight:
+                if (free.isEmpty() && pending.size() + free.size() >= maxChunks)
+                {
+                    free.add(writeResult(pending.removeFirst(), name));
+                }
+                Chunk chunk = free.isEmpty() ? new Chunk(bufferSize) : free.removeFirst();
+                
+                ByteBuffer buffer = chunk.in;
+                buffer.clear();
+                buffer.put(carry, 0, carryLength);
+                while (buffer.hasRemaining() && !eof)
+                {
+                    eof = in.read(buffer) < 0;
+                }
+                
+                int dataEnd = buffer.position();
+                int linesEnd = eof ? dataEnd : lastLineEnd(buffer.array(), dataEnd);
+                if (linesEnd < 0)
+                {
+                    throw new IOException(name + ": line " + firstLine + 
+                            " is longer than " + bufferSize + " bytes.");
+                }
+                
+                carryLength = dataEnd - linesEnd;
+                System.arraycopy(buffer.array(), linesEnd, carry, 0, carryLength);
+                buffer.position(0).limit(linesEnd);
+                chunk.firstLine = firstLine;
+                
+                if (executor == null)
+                {
+                    chunk.transform();
+                    free.add(writeResult(chunk, name));
+                }
+                else
+                {
+                    pending.add(executor.submit(chunk));
+                }
+                firstLine += chunk.countLines();
+            }
+            
+            while (!pending.isEmpty())
+            {
+                writeResult(pending.removeFirst(), name);
+            }
+        }
+        finally
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+    
+    private Chunk writeResult(Future<Chunk> future, String name) throws IOException
+    {
+        try
+        {
+            return writeResult(future.get(), name);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    private Chunk writeResult(Chunk chunk, String name) throws IOException
+    {
+        for (int i = 0; i < chunk.errorCount; i++)
+        {
+            err.println(name + ":" + (chunk.firstLine + chunk.errorLines[i]) + 
+                    ": illegal character");
+        }
+        errorCount += chunk.errorCount;
+        
+        ByteBuffer result = chunk.out;
+        result.flip();
+        while (result.hasRemaining())
+        {
+            out.write(result);
+        }
+        return chunk;
+    }
+    
+    /**
+     * @return the index after the last '\n' in buffer[0, end), or -1 if
+     *      there is none
+     */
+    private static int lastLineEnd(byte[] buffer, int end)
+    {
+        for (int i = end - 1; i >= 0; i--)
+        {
+            if (buffer[i] == '\n')
+            {
+                return i + 1;
+            }
+        }
+        return end == 0 ? 0 : -1;
+    }
+    
+    /**
+     * A block of whole lines and the buffer their transformed form is
+     * written to. Chunks are reused once their output has been written.
+     */
+    private class Chunk implements Callable<Chunk>
+    {
+        final ByteBuffer in;
+        final ByteBuffer out;
+        
+        long firstLine;
+        int[] errorLines = new int[16];
+        int errorCount;
+        
+        Chunk(int size)
+        {
+            in = ByteBuffer.allocate(size);
+            // Worst case is a file of empty lines when encoding,
+            // where every "\n" becomes "A\n":
+            out = ByteBuffer.allocate(size * 2 + 2);
+        }
+        
+        public Chunk call()
+        {
+            transform();
+            return this;
+        }
+        
+        int countLines()
+        {
+            byte[] src = in.array();
+            int end = in.limit();
+            int lines = 0;
+            for (int i = 0; i < end; i++)
+            {
+                if (src[i] == '\n')
+                {
+                    lines++;
+                }
+            }
+            // An unterminated last line at end of input:
+            if (end > 0 && src[end - 1] != '\n')
+            {
+                lines++;
+            }
+            return lines;
+        }
+        
+        void transform()
+        {
+            byte[] src = in.array();
+            byte[] dst = out.array();
+            int limit = in.limit();
+            int sp = 0;
+            int dp = 0;
+            int line = 0;
+            errorCount = 0;
+            
+            while (sp < limit)
+            {
+                int newline = sp;
+                while (newline < limit && src[newline] != '\n')
+                {
+                    newline++;
+                }
+                
+                int end = newline;
+                if (end > sp && src[end - 1] == '\r')
+                {
+                    end--;
+                }
+                
+                int written = transformLine(src, sp, end, dst, dp);
+                if (written < 0)
+                {
+                    addError(line);
+                }
+                else
+                {
+                    dp += written;
+                }
+                dst[dp++] = '\n';
+                
+                sp = newline + 1;
+                line++;
+            }
+            
+            out.clear();
+            out.position(dp);
+        }
+        
+        /**
+         * @return bytes written, or -1 if the line has an illegal character
+         */
+        private int transformLine(byte[] src, int start, int end, byte[] dst, int dp)
+        {
+            int written = 0;
+            if (encode)
+            {
+                dst[dp + written++] = 'A';
+            }
+            else if (start < end && src[start] == 'A')
+            {
+                start++;
+            }
+            
+            for (int i = start; i < end; i++)
+            {
+                char c = CvsPassword.lookup((char)(src[i] & 0xff));
+                if (c == 0)
+                {
+                    return -1;
+                }
+                dst[dp + written++] = (byte)c;
+            }
+            return written;
+        }
+        
+        private void addError(int line)
+        {
+            if (errorCount == errorLines.length)
+            {
+                int[] grown = new int[errorLines.length * 2];
+                System.arraycopy(errorLines, 0, grown, 0, errorCount);
+                errorLines = grown;
+            }
+            errorLines[errorCount++] = line;
+        }
+    }
+    
+    private static void usage()
+    {
+        System.err.println("Usage: CvsPassword (-e | -d) [-t threads] [-b bufferSize] [file | -]...");
+        System.err.println("  -e, --encode        encode each line");
+        System.err.println("  -d, --decode        decode each line");
+        System.err.println("  -t, --threads N     transform with N worker threads (default 1)");
+        System.err.println("  -b, --buffer-size N bytes per chunk, and longest line (default " + 
+                DEFAULT_BUFFER_SIZE + ")");
+        System.err.println("Reads stdin when no file, or '-', is given.");
+        System.exit(2);
+    }
+    
+    public static void main(String[] args)
+    {
+        Boolean encode = null;
+        int threads = 1;
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        List<String> files = new ArrayList<String>();
+        
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.equals("-e") || arg.equals("--encode"))
+                {
+                    encode = Boolean.TRUE;
+                }
+                else if (arg.equals("-d") || arg.equals("--decode"))
+                {
+                    encode = Boolean.FALSE;
+                }
+                else if (arg.equals("-t") || arg.equals("--threads"))
+                {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                else if (arg.equals("-b") || arg.equals("--buffer-size"))
+                {
+                    bufferSize = Integer.parseInt(args[++i]);
+                }
+                else if (arg.startsWith("-") && arg.length() > 1)
+                {
+                    usage();
+                }
+                else
+                {
+                    files.add(arg);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            usage();
+        }
+        
+        if (encode == null || threads < 1 || bufferSize < 1)
+        {
+            usage();
+        }
+        if (files.isEmpty())
+        {
+            files.add("-");
+        }
+        
+        FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        CvsPasswordCli cli = new CvsPasswordCli(encode.booleanValue(), bufferSize, threads, 
+                                                stdout.getChannel(), System.err);
+        try
+        {
+            for (String file : files)
+            {
+                if (file.equals("-"))
+                {
+                    FileInputStream stdin = new FileInputStream(FileDescriptor.in);
+                    cli.process(stdin.getChannel(), "<stdin>");
+                }
+                else
+                {
+                    FileInputStream in = new FileInputStream(file);
+                    try
+                    {
+                        cli.process(in.getChannel(), file);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        
+        System.exit(cli.getErrorCount() > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Optional instrumentation of the {@link CvsPassword} codec: call counts,
+ * characters processed, rejected inputs and latency histograms, published
+ * as the platform MBean {@value #OBJECT_NAME}.
+ * 
+ * <p>
+ * Instrumentation is off unless the JVM is started with
+ * -D{@value #ENABLED_PROPERTY}=true. The switch is a static final constant,
+ * so when it is off the JIT removes the recording code from the codec
+ * entirely. When it is on, all counters are striped per thread so that
+ * recording does not contend.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsPasswordMetrics implements CvsPasswordMetricsMBean
+{
+    /**
+     * System property that turns instrumentation on.
+     */
+    public static final String ENABLED_PROPERTY = "com.krohinc.cvs.metrics";
+    
+    /**
+     * Name the MBean is registered under.
+     */
+    public static final String OBJECT_NAME = "com.krohinc.cvs:type=CvsPasswordMetrics";
+    
+    static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+    
+    private static final int BUCKETS = 64;
+    
+    // Counter indexes:
+    private static final int ENCODE_CALLS = 0;
+    private static final int ENCODE_CHARS = 1;
+    private static final int DECODE_CALLS = 2;
+    private static final int DECODE_CHARS = 3;
+    private static final int REJECTED = 4;
+    
+    private static final CvsPasswordMetrics INSTANCE = ENABLED ? register() : null;
+    
+    private final StripedCounter counters = new StripedCounter(5);
+    private final StripedCounter encodeLatency = new StripedCounter(BUCKETS);
+    private final StripedCounter decodeLatency = new StripedCounter(BUCKETS);
+    
+    private CvsPasswordMetrics()
+    {
+    }
+    
+    private static CvsPasswordMetrics register()
+    {
+        CvsPasswordMetrics metrics = new CvsPasswordMetrics();
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    metrics, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e)
+        {
+            System.err.println("Could not register " + OBJECT_NAME + ": " + e);
+        }
+        return metrics;
+    }
+    
+    /**
+     * @return the metrics, or null if instrumentation is off
+     */
+    public static CvsPasswordMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    /**
+     * @return System.nanoTime() if instrumentation is on, otherwise 0
+     */
+    static long start()
+    {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+    
+    static void encoded(int characters, long startNanos)
+    {
+        if (ENABLED)
+        {
+            long elapsed = System.nanoTime() - startNanos;
+            INSTANCE.counters.add(ENCODE_CALLS, 1, ENCODE_CHARS, characters);
+            INSTANCE.encodeLatency.add(bucket(elapsed), 1);
+        }
+    }
+    
+    static void decoded(int characters, long startNanos)
+    {
+        if (ENABLED)
+        {
+            long elapsed = System.nanoTime() - startNanos;
+            INSTANCE.counters.add(DECODE_CALLS, 1, DECODE_CHARS, characters);
+            INSTANCE.decodeLatency.add(bucket(elapsed), 1);
+        }
+    }
+    
+    static void rejected()
+    {
+        if (ENABLED)
+        {
+            INSTANCE.counters.add(REJECTED, 1);
+        }
+    }
+    
+    private static int bucket(long nanos)
+    {
+        return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+    
+    private static long percentile(long[] histogram, double fraction)
+    {
+        long total = 0;
+        for (long count : histogram)
+        {
+            total += count;
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+        
+        long target = (long)Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++)
+        {
+            seen += histogram[i];
+            if (seen >= target)
+            {
+                return i == 0 ? 0 : 1L << Math.min(i, 62);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public long getEncodeCount()
+    {
+        return counters.sum(ENCODE_CALLS);
+    }
+
+    public long getDecodeCount()
+    {
+        return counters.sum(DECODE_CALLS);
+    }
+
+    public long getEncodedCharacters()
+    {
+        return counters.sum(ENCODE_CHARS);
+    }
+
+    public long getDecodedCharacters()
+    {
+        return counters.sum(DECODE_CHARS);
+    }
+
+    public long getRejectedCount()
+    {
+        return counters.sum(REJECTED);
+    }
+
+    public long[] getEncodeLatencyHistogram()
+    {
+        return encodeLatency.sums();
+    }
+
+    public long[] getDecodeLatencyHistogram()
+    {
+        return decodeLatency.sums();
+    }
+
+    public long getEncodeLatencyP50Nanos()
+    {
+        return percentile(getEncodeLatencyHistogram(), 0.50);
+    }
+
+    public long getEncodeLatencyP99Nanos()
+    {
+        return percentile(getEncodeLatencyHistogram(), 0.99);
+    }
+
+    public long getDecodeLatencyP50Nanos()
+    {
+        return percentile(getDecodeLatencyHistogram(), 0.50);
+    }
+
+    public long getDecodeLatencyP99Nanos()
+    {
+        return percentile(getDecodeLatencyHistogram(), 0.99);
+    }
+
+    public void reset()
+    {
+        counters.reset();
+        encodeLatency.reset();
+        decodeLatency.reset();
+    }
+}
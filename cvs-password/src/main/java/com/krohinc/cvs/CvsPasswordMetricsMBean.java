@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+/**
+ * <p>
+ * Management interface of {@link CvsPasswordMetrics}.
+ * 
+ * <p>
+ * Latency histograms have 64 buckets; bucket i counts calls that took
+ * [2^(i-1), 2^i) nanoseconds, bucket 0 counts calls under 1ns. Percentiles
+ * are reported as the upper bound of the bucket they fall in.
+ * 
+ * @author Andrew Kroh
+ */
+public interface CvsPasswordMetricsMBean
+{
+    long getEncodeCount();
+    
+    long getDecodeCount();
+    
+    long getEncodedCharacters();
+    
+    long getDecodedCharacters();
+    
+    long getRejectedCount();
+    
+    long[] getEncodeLatencyHistogram();
+    
+    long[] getDecodeLatencyHistogram();
+    
+    long getEncodeLatencyP50Nanos();
+    
+    long getEncodeLatencyP99Nanos();
+    
+    long getDecodeLatencyP50Nanos();
+    
+    long getDecodeLatencyP99Nanos();
+    
+    void reset();
+}
@@ -17,19 +17,33 @@
 package com.krohinc.cvs;
 
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.UIDefaults;
 import javax.swing.UIManager;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Document;
+import javax.swing.text.Highlighter;
 
 import com.krohinc.cvs.CvsPassword;
 
@@ -38,85 +52,471 @@ import com.krohinc.cvs.CvsPassword;
  * This is a demo app to show CVS password
  * encryption/decryption.
  * 
+ * <p>
+ * Edits are mirrored into the other field incrementally. Because the
+ * scramble maps one character to one character, an insert or removal in
+ * one field becomes an insert or removal at the same offset (adjusted for
+ * the leading 'A') in the other. Bursts of edits are coalesced by a short
+ * timer, and large inserts, such as a pasted file, are converted on a
+ * background thread. Characters that cannot be converted are highlighted
+ * and shown as U+FFFD in the other field instead of failing.
+ * 
  * @author Andrew Kroh
  */
 public class CvsPasswordUi extends JPanel
 {
+    /**
+     * How long to wait for more edits before converting.
+     */
+    private static final int DEBOUNCE_MILLIS = 40;
+    
+    /**
+     * Inserts longer than this are converted off the EDT.
+     */
+    private static final int BACKGROUND_THRESHOLD = 16 * 1024;
+    
+    /**
+     * Shown in place of characters that cannot be converted.
+     */
+    private static final char PLACEHOLDER = '\uFFFD';
+    
+    private static final Highlighter.HighlightPainter ERROR_PAINTER = 
+            new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 170, 170));
+    
     private final JTextField plainTextField;
     private final JTextField cipherTextField;
     private boolean isChanging = false;
     
+    // Edits made to pendingSource that have not been applied to the
+    // other field yet:
+    private final List<Edit> pending = new ArrayList<Edit>();
+    private JTextField pendingSource;
+    private boolean fullResync;
+    private boolean working;
+    private int generation;
+    private final Timer debounceTimer;
+    
     public CvsPasswordUi()
     {
         super(new BorderLayout());
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
+        debounceTimer = new Timer(DEBOUNCE_MILLIS, new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                applyPending();
+            }
+        });
+        debounceTimer.setRepeats(false);
+        
         plainTextField = new JTextField(20);
-        plainTextField.getDocument().addDocumentListener(new DocumentListener(){
-            @Override
-            public void changedUpdate(DocumentEvent e)
+        plainTextField.getDocument().addDocumentListener(new SourceListener(plainTextField));
+        
+        cipherTextField = new JTextField(20);
+        cipherTextField.getDocument().addDocumentListener(new SourceListener(cipherTextField));
+        
+        add(buildCorePanel());
+        add(buildFooterPanel(), BorderLayout.PAGE_END);
+    }
+    
+    private JComponent buildFooterPanel()
+    {
+        JButton openButton = new JButton(new AbstractAction("Open .cvspass...")
+        {
+            public void actionPerformed(ActionEvent e)
             {
-                setCipherText();
+                JFileChooser chooser = new JFileChooser(System.getProperty("user.home"));
+                chooser.setFileHidingEnabled(false);
+                if (chooser.showOpenDialog(CvsPasswordUi.this) == JFileChooser.APPROVE_OPTION)
+                {
+                    CvsPassTablePanel.showFile(CvsPasswordUi.this, chooser.getSelectedFile());
+                }
             }
+            private static final long serialVersionUID = 1L;
+        });
+        
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createEmptyBorder(5, 0, 0, 0));
+        panel.add(new JLabel("From http://blog.crowbird.com"), BorderLayout.LINE_START);
+        panel.add(openButton, BorderLayout.LINE_END);
+        return panel;
+    }
+    
+    /**
+     * An insert (text != null) or removal made to a field.
+     */
+    private static class Edit
+    {
+        final int offset;
+        final String text;
+        final int length;
+        
+        Edit(int offset, String text, int length)
+        {
+            this.offset = offset;
+            this.text = text;
+            this.length = length;
+        }
+    }
+    
+    private class SourceListener implements DocumentListener
+    {
+        private final JTextField field;
+        
+        SourceListener(JTextField field)
+        {
+            this.field = field;
+        }
+        
+        public void changedUpdate(DocumentEvent e)
+        {
+            // Attribute changes do not affect the text.
+        }
 
-            @Override
-            public void insertUpdate(DocumentEvent e)
+        public void insertUpdate(DocumentEvent e)
+        {
+            if (isChanging)
+            {
+                return;
+            }
+            
+            String text;
+            try
+            {
+                text = e.getDocument().getText(e.getOffset(), e.getLength());
+            }
+            catch (BadLocationException ex)
             {
-                setCipherText();
+                record(field, null);
+                return;
             }
+            
+            markIllegal(field, e.getOffset(), text);
+            record(field, new Edit(e.getOffset(), text, e.getLength()));
+        }
 
-            @Override
-            public void removeUpdate(DocumentEvent e)
+        public void removeUpdate(DocumentEvent e)
+        {
+            if (isChanging)
             {
-                setCipherText();
+                return;
             }
             
-            private void setCipherText()
+            pruneHighlights(field);
+            record(field, new Edit(e.getOffset(), null, e.getLength()));
+        }
+    }
+    
+    /**
+     * Queues an edit; a null edit requests a full conversion of the field.
+     */
+    private void record(JTextField source, Edit edit)
+    {
+        if (pendingSource != null && pendingSource != source)
+        {
+            // The user moved to the other field before it caught up; this
+            // field is now the source of truth:
+            pending.clear();
+            fullResync = true;
+            working = false;
+            generation++;
+        }
+        
+        pendingSource = source;
+        if (edit == null)
+        {
+            pending.clear();
+            fullResync = true;
+        }
+        else if (!fullResync)
+        {
+            pending.add(edit);
+        }
+        debounceTimer.restart();
+    }
+    
+    /**
+     * Applies queued edits to the other field. Runs on the EDT; hands large
+     * conversions to a background thread and resumes when they finish.
+     */
+    private void applyPending()
+    {
+        if (working || pendingSource == null)
+        {
+            return;
+        }
+        
+        JTextField source = pendingSource;
+        JTextField target = source == plainTextField ? cipherTextField : plainTextField;
+        
+        if (fullResync)
+        {
+            String text = source.getText();
+            if (text.length() > BACKGROUND_THRESHOLD)
             {
-                if (!isChanging)
-                {
-                    isChanging = true;
-                    String cipher = CvsPassword.encode(plainTextField.getText());
-                    cipherTextField.setText(cipher);
-                    isChanging = false;
-                }
+                convertInBackground(text, null);
+                return;
             }
-        });
+            applyFull(source, target, text, convert(text));
+        }
         
-        cipherTextField = new JTextField(20);
-        cipherTextField.getDocument().addDocumentListener(new DocumentListener(){
-            @Override
-            public void changedUpdate(DocumentEvent e)
+        while (!pending.isEmpty())
+        {
+            Edit edit = pending.get(0);
+            int targetOffset = targetOffset(source, target, edit);
+            if (targetOffset < 0)
             {
-                setPlainText();
+                fullResync = true;
+                pending.clear();
+                applyPending();
+                return;
             }
-
-            @Override
-            public void insertUpdate(DocumentEvent e)
+            
+            if (edit.text != null && edit.text.length() > BACKGROUND_THRESHOLD)
             {
-                setPlainText();
+                convertInBackground(edit.text, edit);
+                return;
             }
-
+            
+            pending.remove(0);
+            applyEdit(source, target, edit, edit.text == null ? null : convert(edit.text));
+            if (fullResync)
+            {
+                pending.clear();
+                applyPending();
+                return;
+            }
+        }
+        
+        pendingSource = null;
+    }
+    
+    /**
+     * @return where the edit lands in the target, or -1 if the whole field
+     *      has to be converted instead
+     */
+    private int targetOffset(JTextField source, JTextField target, Edit edit)
+    {
+        if (source == plainTextField)
+        {
+            // The cipher text is empty only when the user cleared it;
+            // rebuild it so it gets its leading 'A' back:
+            Document cipher = target.getDocument();
+            if (cipher.getLength() == 0)
+            {
+                return -1;
+            }
+            return edit.offset + prefixLength(cipher);
+        }
+        
+        // Edits at the start of the cipher text may add or remove
+        // the leading 'A':
+        if (edit.offset == 0)
+        {
+            return -1;
+        }
+        return edit.offset - prefixLength(source.getDocument());
+    }
+    
+    private static int prefixLength(Document cipher)
+    {
+        try
+        {
+            return cipher.getLength() > 0 && cipher.getText(0, 1).charAt(0) == 'A' ? 1 : 0;
+        }
+        catch (BadLocationException e)
+        {
+            return 0;
+        }
+    }
+    
+    private void convertInBackground(final String text, final Edit edit)
+    {
+        working = true;
+        final int startGeneration = generation;
+        
+        new SwingWorker<String, Void>()
+        {
             @Override
-            public void removeUpdate(DocumentEvent e)
+            protected String doInBackground()
             {
-                setPlainText();
+                return convert(text);
             }
             
-            private void setPlainText()
+            @Override
+            protected void done()
             {
-                if (!isChanging)
+                if (startGeneration != generation)
                 {
-                    isChanging = true;
-                    String plain = CvsPassword.decode(cipherTextField.getText());
-                    plainTextField.setText(plain);
-                    isChanging = false;
+                    // Superseded by an edit in the other field.
+                    return;
                 }
+                working = false;
+                
+                String converted;
+                try
+                {
+                    converted = get();
+                }
+                catch (Exception e)
+                {
+                    converted = null;
+                }
+                
+                if (converted == null)
+                {
+                    fullResync = true;
+                    pending.clear();
+                    applyPending();
+                    return;
+                }
+                
+                JTextField source = pendingSource;
+                JTextField target = source == plainTextField ? cipherTextField : plainTextField;
+                if (edit == null)
+                {
+                    if (!text.equals(source.getText()))
+                    {
+                        // Edited while converting; start over:
+                        applyPending();
+                        return;
+                    }
+                    applyFull(source, target, text, converted);
+                }
+                else
+                {
+                    pending.remove(0);
+                    applyEdit(source, target, edit, converted);
+                }
+                applyPending();
             }
-        });
+        }.execute();
+    }
+    
+    private void applyFull(JTextField source, JTextField target, String text, String converted)
+    {
+        String result;
+        if (source == plainTextField)
+        {
+            result = "A" + converted;
+        }
+        else
+        {
+            // convert() handled the whole cipher text; drop the
+            // leading 'A' again:
+            result = text.length() > 0 && text.charAt(0) == 'A' ? converted.substring(1) : converted;
+        }
         
-        add(buildCorePanel());
-        add(new JLabel("From http://blog.crowbird.com"), BorderLayout.PAGE_END);
+        isChanging = true;
+        target.setText(result);
+        isChanging = false;
+        
+        source.getHighlighter().removeAllHighlights();
+        markIllegal(source, 0, text);
+        pruneHighlights(target);
+        
+        fullResync = false;
+        pending.clear();
+    }
+    
+    private void applyEdit(JTextField source, JTextField target, Edit edit, String converted)
+    {
+        int offset = targetOffset(source, target, edit);
+        Document document = target.getDocument();
+        
+        isChanging = true;
+        try
+        {
+            if (converted != null)
+            {
+                document.insertString(offset, converted, null);
+            }
+            else
+            {
+                document.remove(offset, edit.length);
+            }
+        }
+        catch (BadLocationException e)
+        {
+            // Out of step; convert the whole field instead:
+            fullResync = true;
+        }
+        finally
+        {
+            isChanging = false;
+        }
+        
+        pruneHighlights(target);
+    }
+    
+    /**
+     * Maps every character through the scramble, substituting PLACEHOLDER
+     * for characters that cannot be converted.
+     */
+    private static String convert(String text)
+    {
+        char[] converted = new char[text.length()];
+        for (int i = 0; i < converted.length; i++)
+        {
+            char c = CvsPassword.lookup(text.charAt(i));
+            converted[i] = c == 0 ? PLACEHOLDER : c;
+        }
+        return String.valueOf(converted);
+    }
+    
+    /**
+     * Highlights runs of illegal characters in text, which was inserted into
+     * field at offset.
+     */
+    private static void markIllegal(JTextField field, int offset, String text)
+    {
+        Highlighter highlighter = field.getHighlighter();
+        int i = CvsPassword.indexOfIllegal(text, 0, text.length());
+        
+        while (i >= 0)
+        {
+            int end = i + 1;
+            while (end < text.length() && !CvsPassword.isLegal(text.charAt(end)))
+            {
+                end++;
+            }
+            
+            try
+            {
+                highlighter.addHighlight(offset + i, offset + end, ERROR_PAINTER);
+            }
+            catch (BadLocationException e)
+            {
+                // The text has already changed again.
+            }
+            
+            i = end < text.length() ? CvsPassword.indexOfIllegal(text, end, text.length()) : -1;
+        }
+        updateToolTip(field);
+    }
+    
+    /**
+     * Drops highlights whose text has been removed.
+     */
+    private static void pruneHighlights(JTextField field)
+    {
+        Highlighter highlighter = field.getHighlighter();
+        for (Highlighter.Highlight highlight : highlighter.getHighlights())
+        {
+            if (highlight.getStartOffset() >= highlight.getEndOffset())
+            {
+                highlighter.removeHighlight(highlight);
+            }
+        }
+        updateToolTip(field);
+    }
+    
+    private static void updateToolTip(JTextField field)
+    {
+        boolean hasErrors = field.getHighlighter().getHighlights().length > 0;
+        field.setToolTipText(hasErrors 
+                ? "Highlighted characters cannot be used in a CVS password." : null);
     }
     
     private JComponent buildCorePanel()
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * <p>
+ * The pserver password scramble as a {@link Charset}. Encoding maps clear
+ * characters to scrambled bytes and decoding maps scrambled bytes back to
+ * clear characters, using the same lookup table as {@link CvsPassword}. This
+ * lets the scramble be applied directly by InputStreamReader,
+ * OutputStreamWriter, Channels.newReader/newWriter or a CharsetEncoder loop
+ * over ByteBuffers, without going through intermediate Strings.
+ * 
+ * <p>
+ * The charset only applies the character mapping. It does not add or strip
+ * the leading 'A' of an encoded password; that is left to the caller. Line
+ * terminators ('\n' and '\r') are passed through unchanged so newline
+ * delimited streams can be processed whole. Any other character that
+ * {@link CvsPassword#isLegal(char)} rejects is reported as unmappable by the
+ * encoder and malformed by the decoder.
+ * 
+ * <p>
+ * The charset is registered under the name {@value #NAME} by
+ * {@link CvsScrambleCharsetProvider}.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsScrambleCharset extends Charset
+{
+    /**
+     * Canonical name of the charset.
+     */
+    public static final String NAME = "X-CVS-PSERVER-SCRAMBLE";
+    
+    /**
+     * The shared instance.
+     */
+    public static final CvsScrambleCharset INSTANCE = new CvsScrambleCharset();
+    
+    private CvsScrambleCharset()
+    {
+        super(NAME, new String[] {"x-cvs-scramble", "cvs-pserver"});
+    }
+
+    @Override
+    public boolean contains(Charset cs)
+    {
+        return cs instanceof CvsScrambleCharset;
+    }
+
+    @Override
+    public CharsetDecoder newDecoder()
+    {
+        return new Decoder(this);
+    }
+
+    @Override
+    public CharsetEncoder newEncoder()
+    {
+        return new Encoder(this);
+    }
+    
+    /**
+     * @return the mapped character, or 0 if c cannot be mapped
+     */
+    private static char map(char c)
+    {
+        if (c == '\n' || c == '\r')
+        {
+            return c;
+        }
+        return CvsPassword.lookup(c);
+    }
+    
+    private static class Encoder extends CharsetEncoder
+    {
+        Encoder(Charset cs)
+        {
+            super(cs, 1f, 1f, new byte[] {(byte)CvsPassword.lookup('?')});
+        }
+
+        @Override
+        public boolean canEncode(char c)
+        {
+            return map(c) != 0;
+        }
+
+        @Override
+        protected CoderResult encodeLoop(CharBuffer in, ByteBuffer out)
+        {
+            if (in.hasArray() && out.hasArray())
+            {
+                return encodeArrayLoop(in, out);
+            }
+            
+            while (in.hasRemaining())
+            {
+                if (!out.hasRemaining())
+                {
+                    return CoderResult.OVERFLOW;
+                }
+                
+                char c = map(in.get(in.position()));
+                if (c == 0)
+                {
+                    return CoderResult.unmappableForLength(1);
+                }
+                
+                out.put((byte)c);
+                in.position(in.position() + 1);
+            }
+            return CoderResult.UNDERFLOW;
+        }
+        
+        private CoderResult encodeArrayLoop(CharBuffer in, ByteBuffer out)
+        {
+            char[] src = in.array();
+            int sp = in.arrayOffset() + in.position();
+            int sl = in.arrayOffset() + in.limit();
+            byte[] dst = out.array();
+            int dp = out.arrayOffset() + out.position();
+            int dl = out.arrayOffset() + out.limit();
+            
+            CoderResult result = CoderResult.UNDERFLOW;
+            int stop = sp + Math.min(sl - sp, dl - dp);
+            while (sp < stop)
+            {
+                char c = map(src[sp]);
+                if (c == 0)
+                {
+                    result = CoderResult.unmappableForLength(1);
+                    break;
+                }
+                dst[dp++] = (byte)c;
+                sp++;
+            }
+            
+            if (result.isUnderflow() && sp < sl)
+            {
+                result = CoderResult.OVERFLOW;
+            }
+            
+            in.position(sp - in.arrayOffset());
+            out.position(dp - out.arrayOffset());
+            return result;
+        }
+    }
+    
+    private static class Decoder extends CharsetDecoder
+    {
+        Decoder(Charset cs)
+        {
+            super(cs, 1f, 1f);
+        }
+
+        @Override
+        protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out)
+        {
+            if (in.hasArray() && out.hasArray())
+            {
+                return decodeArrayLoop(in, out);
+            }
+            
+            while (in.hasRemaining())
+            {
+                if (!out.hasRemaining())
+                {
+                    return CoderResult.OVERFLOW;
+                }
+                
+                char c = map((char)(in.get(in.position()) & 0xff));
+                if (c == 0)
+                {
+                    return CoderResult.malformedForLength(1);
+                }
+                
+                out.put(c);
+                in.position(in.position() + 1);
+            }
+            return CoderResult.UNDERFLOW;
+        }
+        
+        private CoderResult decodeArrayLoop(ByteBuffer in, CharBuffer out)
+        {
+            byte[] src = in.array();
+            int sp = in.arrayOffset() + in.position();
+            int sl = in.arrayOffset() + in.limit();
+            char[] dst = out.array();
+            int dp = out.arrayOffset() + out.position();
+            int dl = out.arrayOffset() + out.limit();
+            
+            CoderResult result = CoderResult.UNDERFLOW;
+            int stop = sp + Math.min(sl - sp, dl - dp);
+            while (sp < stop)
+            {
+                char c = map((char)(src[sp] & 0xff));
+                if (c == 0)
+                {
+                    result = CoderResult.malformedForLength(1);
+                    break;
+                }
+                dst[dp++] = c;
+                sp++;
+            }
+            
+            if (result.isUnderflow() && sp < sl)
+            {
+                result = CoderResult.OVERFLOW;
+            }
+            
+            in.position(sp - in.arrayOffset());
+            out.position(dp - out.arrayOffset());
+            return result;
+        }
+    }
+}
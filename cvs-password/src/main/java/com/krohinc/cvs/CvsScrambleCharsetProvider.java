@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.nio.charset.Charset;
+import java.nio.charset.spi.CharsetProvider;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * <p>
+ * Makes {@link CvsScrambleCharset} available through
+ * {@link Charset#forName(String)}. Registered in
+ * META-INF/services/java.nio.charset.spi.CharsetProvider.
+ * 
+ * @author Andrew Kroh
+ */
+public class CvsScrambleCharsetProvider extends CharsetProvider
+{
+    @Override
+    public Iterator<Charset> charsets()
+    {
+        return Collections.<Charset>singleton(CvsScrambleCharset.INSTANCE).iterator();
+    }
+
+    @Override
+    public Charset charsetForName(String charsetName)
+    {
+        Charset charset = CvsScrambleCharset.INSTANCE;
+        if (charset.name().equalsIgnoreCase(charsetName))
+        {
+            return charset;
+        }
+        
+        for (String alias : charset.aliases())
+        {
+            if (alias.equalsIgnoreCase(charsetName))
+            {
+                return charset;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.cvs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A group of counters spread over several cells so that threads updating
+ * the same counter mostly touch different cache lines. A thread always uses
+ * the same stripe, chosen from its id. Reads sum all stripes and are not an
+ * atomic snapshot.
+ * 
+ * <p>
+ * Each stripe holds width counters followed by padding, so the counters of
+ * different stripes do not share a cache line.
+ * 
+ * @author Andrew Kroh
+ */
+class StripedCounter
+{
+    /**
+     * Longs of padding between stripes; 128 bytes covers adjacent line
+     * prefetching.
+     */
+    private static final int PADDING = 16;
+    
+    private static final int STRIPES = stripeCount();
+    
+    private final AtomicLongArray cells;
+    private final int width;
+    private final int stride;
+    
+    /**
+     * @param width
+     *            number of counters in the group
+     */
+    StripedCounter(int width)
+    {
+        this.width = width;
+        this.stride = width + PADDING;
+        this.cells = new AtomicLongArray(STRIPES * stride);
+    }
+    
+    private static int stripeCount()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = 1;
+        while (count < processors * 2)
+        {
+            count <<= 1;
+        }
+        return count;
+    }
+    
+    private int base()
+    {
+        long id = Thread.currentThread().getId();
+        int hash = (int)(id * 0x9E3779B97F4A7C15L >>> 32);
+        return (hash & (STRIPES - 1)) * stride;
+    }
+    
+    /**
+     * @param index
+     *            which counter of the group
+     * @param delta
+     *            amount to add
+     */
+    void add(int index, long delta)
+    {
+        cells.getAndAdd(base() + index, delta);
+    }
+    
+    /**
+     * Adds to two counters of the group with a single stripe lookup.
+     */
+    void add(int index1, long delta1, int index2, long delta2)
+    {
+        int base = base();
+        cells.getAndAdd(base + index1, delta1);
+        cells.getAndAdd(base + index2, delta2);
+    }
+    
+    /**
+     * @return the sum of the counter over all stripes
+     */
+    long sum(int index)
+    {
+        long total = 0;
+        for (int i = index; i < cells.length(); i += stride)
+        {
+            total += cells.get(i);
+        }
+        return total;
+    }
+    
+    /**
+     * @return the sum of every counter in the group over all stripes
+     */
+    long[] sums()
+    {
+        long[] totals = new long[width];
+        for (int i = 0; i < width; i++)
+        {
+            totals[i] = sum(i);
+        }
+        return totals;
+    }
+    
+    /**
+     * Sets all counters to zero. Updates racing with the reset may be lost.
+     */
+    void reset()
+    {
+        for (int i = 0; i < cells.length(); i++)
+        {
+            cells.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.ui.util;
+
+import java.awt.Component;
+
+/**
+ * <p>
+ * Builds the content of a {@link PopupWindow} the first time it is shown.
+ * 
+ * @param <T>
+ *            the type of the data backing the content
+ * 
+ * @see PopupWindow#setContentFactory(PopupContentFactory)
+ * 
+ * @author Andrew Kroh
+ */
+public interface PopupContentFactory<T>
+{
+    /**
+     * Loads the data that backs the popup's content. This is called on a
+     * background thread while the popup shows its placeholder, so it must
+     * not touch Swing components.
+     * 
+     * @return the data passed to {@link #createContent(Object)}, may be
+     *         null
+     * @throws Exception
+     *             if the data could not be loaded
+     */
+    T loadData() throws Exception;
+    
+    /**
+     * Creates the popup's content. This is called on the event dispatch
+     * thread once {@link #loadData()} has returned.
+     * 
+     * @param data
+     *            the value returned by {@link #loadData()}
+     * @return the component to show in the popup
+     */
+    Component createContent(T data);
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.ui.util;
+
+import java.awt.Dimension;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+
+/**
+ * <p>
+ * Chooses where a popup goes on screen. The popup is kept at its requested
+ * location when it fits in the usable area of the screen its invoker is
+ * on. Otherwise it is moved below, above, right or left of the invoker,
+ * whichever fits first, and finally clamped to the screen.
+ * 
+ * <p>
+ * The bounds and insets of every screen are cached so that placing a popup
+ * does not query the native display configuration. Each time a popup is
+ * placed, the bounds of the invoker's current graphics configuration are
+ * checked against the cache, so a resized or unplugged screen is noticed
+ * right away. Other changes, such as a moved task bar, are picked up when
+ * the cache expires after a few seconds. {@link #invalidateScreens()}
+ * clears it explicitly.
+ * 
+ * @author Andrew Kroh
+ */
+public final class PopupPlacement
+{
+    private static final long SCREEN_CACHE_TTL_MILLIS = 2000;
+    
+    private static Rectangle[] screenBounds;
+    private static Rectangle[] usableBounds;
+    private static long loadedAt;
+    
+    private PopupPlacement()
+    {
+        // Static methods only.
+    }
+    
+    /**
+     * Discards the cached screen geometry. It is reloaded the next time a
+     * popup is placed.
+     */
+    public static synchronized void invalidateScreens()
+    {
+        screenBounds = null;
+        usableBounds = null;
+    }
+    
+    /**
+     * Returns the screen location for a popup.
+     * 
+     * @param invokerConfig
+     *            the invoker's current graphics configuration, or null
+     * @param invoker
+     *            the invoker's bounds in screen coordinates
+     * @param size
+     *            the popup's size
+     * @param requested
+     *            the location the popup was asked to appear at, in screen
+     *            coordinates
+     * @return the location to show the popup at
+     */
+    static Point place(GraphicsConfiguration invokerConfig, Rectangle invoker, 
+                       Dimension size, Point requested)
+    {
+        Rectangle area = getUsableArea(invokerConfig, invoker);
+        
+        Point[] anchors = new Point[] {
+            requested,
+            new Point(requested.x, invoker.y + invoker.height),  // Below
+            new Point(requested.x, invoker.y - size.height),     // Above
+            new Point(invoker.x + invoker.width, requested.y),   // Right
+            new Point(invoker.x - size.width, requested.y),      // Left
+        };
+        
+        Rectangle candidate = new Rectangle(size);
+        Point best = requested;
+        long bestArea = -1;
+        for (Point anchor : anchors)
+        {
+            candidate.setLocation(anchor);
+            if (area.contains(candidate))
+            {
+                return anchor;
+            }
+            
+            Rectangle visible = area.intersection(candidate);
+            long visibleArea = visible.isEmpty() ? 0 : (long)visible.width * visible.height;
+            if (visibleArea > bestArea)
+            {
+                best = anchor;
+                bestArea = visibleArea;
+            }
+        }
+        
+        return new Point(clamp(best.x, area.x, area.x + area.width - size.width), 
+                         clamp(best.y, area.y, area.y + area.height - size.height));
+    }
+    
+    private static int clamp(int value, int min, int max)
+    {
+        // Keep the top-left corner on screen when the popup is too big:
+        return Math.max(min, Math.min(value, max));
+    }
+    
+    /**
+     * Returns the usable area, excluding task bars and docks, of the screen
+     * that holds most of the given rectangle.
+     */
+    private static synchronized Rectangle getUsableArea(GraphicsConfiguration config, Rectangle r)
+    {
+        loadScreens(config);
+        
+        int best = 0;
+        long bestArea = 0;
+        for (int i = 0; i < screenBounds.length; i++)
+        {
+            Rectangle overlap = screenBounds[i].intersection(r);
+            long area = overlap.isEmpty() ? 0 : (long)overlap.width * overlap.height;
+            if (area > bestArea)
+            {
+                best = i;
+                bestArea = area;
+            }
+        }
+        return usableBounds[best];
+    }
+    
+    private static void loadScreens(GraphicsConfiguration invokerConfig)
+    {
+        if (screenBounds != null && 
+            System.currentTimeMillis() - loadedAt < SCREEN_CACHE_TTL_MILLIS && 
+            (invokerConfig == null || isCached(invokerConfig.getBounds())))
+        {
+            return;
+        }
+        
+        Toolkit toolkit = Toolkit.getDefaultToolkit();
+        GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        
+        GraphicsDevice[] devices = env.getScreenDevices();
+        screenBounds = new Rectangle[devices.length];
+        usableBounds = new Rectangle[devices.length];
+        
+        // The default screen goes first so it is used for
+        // rectangles that are off every screen:
+        GraphicsDevice defaultDevice = env.getDefaultScreenDevice();
+        for (int i = 1; i < devices.length; i++)
+        {
+            if (devices[i] == defaultDevice)
+            {
+                devices[i] = devices[0];
+                devices[0] = defaultDevice;
+            }
+        }
+        
+        for (int i = 0; i < devices.length; i++)
+        {
+            GraphicsDevice device = devices[i];
+            GraphicsConfiguration config = device.getDefaultConfiguration();
+            Rectangle bounds = config.getBounds();
+            Insets insets = toolkit.getScreenInsets(config);
+            
+            screenBounds[i] = bounds;
+            usableBounds[i] = new Rectangle(bounds.x + insets.left, 
+                                            bounds.y + insets.top, 
+                                            bounds.width - insets.left - insets.right, 
+                                            bounds.height - insets.top - insets.bottom);
+        }
+        loadedAt = System.currentTimeMillis();
+    }
+    
+    /**
+     * @return true if a cached screen has exactly these bounds
+     */
+    private static boolean isCached(Rectangle bounds)
+    {
+        for (Rectangle cached : screenBounds)
+        {
+            if (cached.equals(bounds))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
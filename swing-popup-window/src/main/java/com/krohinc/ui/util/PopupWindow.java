@@ -17,19 +17,48 @@
 package com.krohinc.ui.util;
 
 import java.awt.AWTEvent;
+import java.awt.BorderLayout;
 import java.awt.Component;
+import java.awt.Container;
+import java.awt.Dimension;
 import java.awt.Frame;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
+import java.awt.Window;
 import java.awt.event.AWTEventListener;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import javax.swing.BorderFactory;
 import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JLayeredPane;
 import javax.swing.JPanel;
 import javax.swing.JWindow;
+import javax.swing.RepaintManager;
+import javax.swing.RootPaneContainer;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.AncestorEvent;
 import javax.swing.event.AncestorListener;
 
@@ -43,229 +72,1336 @@ import javax.swing.event.AncestorListener;
  */
 public class PopupWindow extends JPanel
 {
-    private Frame frame;
+    // Weakly held so an abandoned popup does not pin its invoker's UI:
+    private WeakReference<Frame> frameRef;
+    private WeakReference<JComponent> invokerRef;
     private JWindow window;
-    private JComponent invoker;
     private Point location;
+    private final Point invokerOffset = new Point();
+    private boolean windowReuse;
+    private boolean followInvoker;
+    private boolean lightweight;
+    private boolean screenAwarePlacement;
+    private boolean snapshotReshow;
+    private VolatileImage snapshot;
+    private volatile boolean snapshotValid;
+    private volatile boolean showingSnapshot;
+    private boolean livePaintingScheduled;
+    private JLayeredPane layeredPane;
+    private PrewarmTask prewarmTask;
+    private PopupContentFactory<?> contentFactory;
+    private Component placeholder;
+    private boolean contentRequested;
+    
+    private static ExecutorService contentLoader;
     
     // Listeners:
-    private final GlobalMouseEventListener globalMouseEventListener;
     private final PopupWindowFocusListener popupWindowFocusListener;
     private final PopupAncestorListener ancestorListener;
+    private final InvokerHierarchyListener invokerHierarchyListener;
+    private final OwnerWindowListener ownerWindowListener;
+    
+    public PopupWindow()
+    {
+        popupWindowFocusListener = new PopupWindowFocusListener();
+        ancestorListener = new PopupAncestorListener();
+        invokerHierarchyListener = new InvokerHierarchyListener();
+        ownerWindowListener = new OwnerWindowListener();
+    }
+    
+    /* Causes this Window to be sized to fit the preferred size
+     * and layouts of its subcomponents.  If the window and/or its owner
+     * are not yet displayable, both are made displayable before
+     * calculating the preferred size.  The Window will be validated
+     * after the preferredSize is calculated.
+     */
+    public void pack()
+    {
+        if (layeredPane != null)
+        {
+            setSize(getPreferredSize());
+            validate();
+        }
+        else if (window != null)
+        {
+            window.pack();
+        }
+    }
+    
+    @Override
+    public void setVisible(boolean visible)
+    {
+        // No-op:
+        if (visible == isVisible())
+        {
+            return;
+        }
+        
+        if (visible)
+        {   
+            requestContent();
+            
+            if (lightweight && showLightweight())
+            {
+                installListeners();
+                return;
+            }
+            
+            // A hidden window is left over from a prewarm or from
+            // window reuse mode:
+            if (window != null && window.getOwner() != getOwnerFrame())
+            {
+                disposeWindow();
+            }
+            
+            if (window == null)
+            {
+                window = createWindow();
+            }
+            else if (getParent() != window.getContentPane())
+            {
+                // Last shown in the frame's layered pane:
+                window.getContentPane().add(this);
+                window.pack();
+            }
+            else if (!isValid() || !window.isValid())
+            {
+                // Only lay out the reused window again when
+                // its content has changed:
+                window.pack();
+            }
+            
+            installListeners();
+            prepareSnapshot();
+            window.setVisible(true);
+        }
+        else
+        {
+            captureSnapshot();
+            
+            if (layeredPane != null)
+            {
+                uninstallListeners();
+                hideLightweight();
+            }
+            else if (window != null)
+            {
+                uninstallListeners();
+                window.setVisible(false);
+                
+                if (!windowReuse)
+                {
+                    window.dispose();
+                    window = null;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sets whether the popup is drawn inside its invoker's frame, on the
+     * POPUP_LAYER of the frame's layered pane, when it fits entirely within
+     * the frame. This avoids creating and showing a native window. A popup
+     * that would cross the frame's bounds is still shown in its own
+     * window. Defaults to false.
+     * 
+     * @param lightweight
+     *            true to draw the popup in the frame when it fits
+     */
+    public void setLightweight(boolean lightweight)
+    {
+        this.lightweight = lightweight;
+    }
+    
+    public boolean isLightweight()
+    {
+        return lightweight;
+    }
+    
+    private boolean showLightweight()
+    {
+        Frame frame = getOwnerFrame();
+        if (!(frame instanceof RootPaneContainer) || location == null || !frame.isShowing())
+        {
+            return false;
+        }
+        
+        JLayeredPane pane = ((RootPaneContainer)frame).getLayeredPane();
+        Point p = new Point(location);
+        SwingUtilities.convertPointFromScreen(p, pane);
+        Dimension size = getPreferredSize();
+        
+        if (p.x < 0 || p.y < 0 || 
+            p.x + size.width > pane.getWidth() || 
+            p.y + size.height > pane.getHeight())
+        {
+            return false;
+        }
+        
+        layeredPane = pane;
+        pane.add(this, JLayeredPane.POPUP_LAYER, 0);
+        setBounds(p.x, p.y, size.width, size.height);
+        validate();
+        prepareSnapshot();
+        pane.repaint(p.x, p.y, size.width, size.height);
+        return true;
+    }
+    
+    private void hideLightweight()
+    {
+        Rectangle bounds = getBounds();
+        layeredPane.remove(this);
+        layeredPane.repaint(bounds.x, bounds.y, bounds.width, bounds.height);
+        layeredPane = null;
+    }
+    
+    /**
+     * Sets whether the popup is kept on the screen its invoker is on. When
+     * the popup does not fit at its requested location it is flipped to
+     * the other side of the invoker or clamped so that it stays inside the
+     * screen's usable area. Defaults to false.
+     * 
+     * @param screenAwarePlacement
+     *            true to keep the popup on screen
+     * @see PopupPlacement
+     */
+    public void setScreenAwarePlacement(boolean screenAwarePlacement)
+    {
+        this.screenAwarePlacement = screenAwarePlacement;
+    }
+    
+    public boolean isScreenAwarePlacement()
+    {
+        return screenAwarePlacement;
+    }
+    
+    /**
+     * Sets whether the popup keeps a snapshot of its content and draws that
+     * snapshot for the first paint after it is shown, instead of painting
+     * the content. Painting switches back to the components right after
+     * the snapshot has been drawn. The snapshot is kept across shows for as
+     * long as the content does not change. Any repaint or revalidate
+     * request for the popup or a component inside it discards the
+     * snapshot. These requests are observed through a RepaintManager that
+     * forwards to the current one and is installed only while a popup
+     * holds a snapshot. Defaults to false.
+     * 
+     * @param snapshotReshow
+     *            true to show a snapshot of unchanged content
+     */
+    public void setSnapshotReshow(boolean snapshotReshow)
+    {
+        this.snapshotReshow = snapshotReshow;
+        
+        if (!snapshotReshow)
+        {
+            flushSnapshot();
+        }
+    }
+    
+    public boolean isSnapshotReshow()
+    {
+        return snapshotReshow;
+    }
+    
+    /**
+     * Discards the snapshot so that it is captured again the next time the
+     * popup is hidden.
+     */
+    private void invalidateSnapshot()
+    {
+        snapshotValid = false;
+        showingSnapshot = false;
+    }
+    
+    @Override
+    public void paint(Graphics g)
+    {
+        VolatileImage image = snapshot;
+        if (showingSnapshot && image != null && !image.contentsLost())
+        {
+            g.drawImage(image, 0, 0, null);
+            scheduleLivePainting();
+            return;
+        }
+        
+        showingSnapshot = false;
+        super.paint(g);
+    }
+    
+    /**
+     * Paints the content into the snapshot, just before the popup is
+     * hidden, unless the content has not changed since the last capture.
+     */
+    private void captureSnapshot()
+    {
+        showingSnapshot = false;
+        
+        if (!snapshotReshow || snapshotValid || getWidth() <= 0 || getHeight() <= 0)
+        {
+            return;
+        }
+        
+        // Start tracking before painting so that a component which asks
+        // to be repainted while it paints leaves the snapshot invalid:
+        snapshotValid = true;
+        SnapshotRepaintManager.track(this);
+        
+        do
+        {
+            if (snapshot == null || 
+                snapshot.getWidth() != getWidth() || snapshot.getHeight() != getHeight() || 
+                snapshot.validate(getGraphicsConfiguration()) == VolatileImage.IMAGE_INCOMPATIBLE)
+            {
+                if (snapshot != null)
+                {
+                    snapshot.flush();
+                }
+                snapshot = createVolatileImage(getWidth(), getHeight());
+                
+                if (snapshot == null)
+                {
+                    invalidateSnapshot();
+                    return;
+                }
+            }
+            
+            Graphics2D g = snapshot.createGraphics();
+            try
+            {
+                super.paint(g);
+            }
+            finally
+            {
+                g.dispose();
+            }
+        }
+        while (snapshot.contentsLost());
+    }
+    
+    /**
+     * Shows the snapshot for the first paint after the popup is shown if
+     * it still matches the content.
+     */
+    private void prepareSnapshot()
+    {
+        showingSnapshot = false;
+        
+        if (!snapshotReshow || !snapshotValid || snapshot == null)
+        {
+            return;
+        }
+        
+        // A resized popup, a replaced RepaintManager or lost image
+        // contents mean the snapshot has to be captured again:
+        if (!SnapshotRepaintManager.isInstalled() || 
+            snapshot.getWidth() != getWidth() || snapshot.getHeight() != getHeight() || 
+            snapshot.validate(getGraphicsConfiguration()) != VolatileImage.IMAGE_OK)
+        {
+            invalidateSnapshot();
+            return;
+        }
+        
+        showingSnapshot = true;
+    }
+    
+    private void scheduleLivePainting()
+    {
+        if (livePaintingScheduled)
+        {
+            return;
+        }
+        livePaintingScheduled = true;
+        
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                // What is on screen matches the live content, so
+                // there is nothing to repaint:
+                livePaintingScheduled = false;
+                showingSnapshot = false;
+            }
+        });
+    }
+    
+    private void flushSnapshot()
+    {
+        invalidateSnapshot();
+        SnapshotRepaintManager.untrack(this);
+        
+        if (snapshot != null)
+        {
+            snapshot.flush();
+            snapshot = null;
+        }
+    }
+    
+    /**
+     * Sets whether the popup's window is kept when the popup is hidden and
+     * shown again on the next open. Reusing the window avoids creating a
+     * new native window and laying out the content on every show. The
+     * window is still recreated when the popup is shown for an invoker in a
+     * different frame. Defaults to false.
+     * 
+     * @param windowReuse
+     *            true to reuse the window across show/hide cycles
+     */
+    public void setWindowReuse(boolean windowReuse)
+    {
+        this.windowReuse = windowReuse;
+        
+        if (!windowReuse && window != null && !window.isVisible())
+        {
+            disposeWindow();
+        }
+    }
+    
+    public boolean isWindowReuse()
+    {
+        return windowReuse;
+    }
+    
+    /**
+     * Sets whether the popup follows its invoker when the invoker moves on
+     * screen, for example while its container is scrolled or its frame is
+     * dragged. Bursts of move events are coalesced into at most one
+     * relocation per display frame. The popup is hidden only once the
+     * invoker is scrolled out of view or removed. When false, which is the
+     * default, any movement of the invoker hides the popup.
+     * 
+     * @param followInvoker
+     *            true to keep the popup attached to a moving invoker
+     */
+    public void setFollowInvoker(boolean followInvoker)
+    {
+        this.followInvoker = followInvoker;
+    }
+    
+    public boolean isFollowInvoker()
+    {
+        return followInvoker;
+    }
+    
+    /**
+     * Sets a factory that builds the popup's content the first time the
+     * popup is shown or prewarmed, instead of the caller populating the
+     * popup up front. The factory's data is loaded on a background thread
+     * while the placeholder is shown, then the content replaces the
+     * placeholder and the window is resized to fit. The popup's layout is
+     * set to a BorderLayout.
+     * 
+     * @param contentFactory
+     *            the factory that builds the content
+     */
+    public void setContentFactory(PopupContentFactory<?> contentFactory)
+    {
+        this.contentFactory = contentFactory;
+        contentRequested = false;
+        removeAll();
+        setLayout(new BorderLayout());
+    }
+    
+    /**
+     * Sets the component shown while the content from the content factory
+     * is loading. Defaults to a "Loading..." label.
+     * 
+     * @param placeholder
+     *            the component shown while loading
+     */
+    public void setPlaceholder(Component placeholder)
+    {
+        this.placeholder = placeholder;
+    }
+    
+    private void requestContent()
+    {
+        if (contentFactory == null || contentRequested)
+        {
+            return;
+        }
+        contentRequested = true;
+        
+        if (placeholder == null)
+        {
+            JLabel label = new JLabel("Loading...");
+            label.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+            placeholder = label;
+        }
+        add(placeholder, BorderLayout.CENTER);
+        
+        loadContent(contentFactory);
+    }
+    
+    private <T> void loadContent(final PopupContentFactory<T> factory)
+    {
+        getContentLoader().execute(new Runnable()
+        {
+            public void run()
+            {
+                T data = null;
+                Exception error = null;
+                try
+                {
+                    data = factory.loadData();
+                }
+                catch (Exception e)
+                {
+                    error = e;
+                }
+                
+                final T loadedData = data;
+                final Exception loadError = error;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        // The factory was replaced while loading:
+                        if (factory != contentFactory)
+                        {
+                            return;
+                        }
+                        
+                        Exception error = loadError;
+                        Component content = null;
+                        if (error == null)
+                        {
+                            try
+                            {
+                                content = factory.createContent(loadedData);
+                            }
+                            catch (RuntimeException e)
+                            {
+                                error = e;
+                            }
+                        }
+                        
+                        if (error != null)
+                        {
+                            String message = error.getMessage() != null ? 
+                                    error.getMessage() : error.getClass().getName();
+                            content = new JLabel("Could not load: " + message);
+                        }
+                        setContent(content);
+                    }
+                });
+            }
+        });
+    }
+    
+    private void setContent(Component content)
+    {
+        removeAll();
+        add(content, BorderLayout.CENTER);
+        revalidate();
+        repaint();
+        
+        pack();
+    }
+    
+    private static synchronized ExecutorService getContentLoader()
+    {
+        if (contentLoader == null)
+        {
+            contentLoader = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "PopupWindow content loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return contentLoader;
+    }
+    
+    /**
+     * Hides the popup, releases its window and detaches it from its
+     * invoker. Use this to free the native resources of a popup in window
+     * reuse mode once it is no longer needed. This happens automatically
+     * when the invoker can no longer be displayed.
+     */
+    public void dispose()
+    {
+        if (prewarmTask != null)
+        {
+            prewarmTask.cancel();
+        }
+        
+        if (layeredPane != null)
+        {
+            setVisible(false);
+        }
+        
+        if (window != null)
+        {
+            disposeWindow();
+        }
+        
+        flushSnapshot();
+        setInvoker(null);
+    }
+    
+    /**
+     * Prepares the popup to be shown from the given invoker without making
+     * it visible. Once the invoker's frame is showing and the event queue
+     * is idle, the popup's window and its native peer are created, the
+     * content is laid out and painted offscreen so that fonts and HTML
+     * views are ready. The first {@link #show(JComponent, int, int)} then
+     * costs about the same as later ones.
+     * 
+     * @param invoker
+     *            the component the popup will be shown from
+     * @throws IllegalArgumentException
+     *             if {@code invoker} is {@code null}
+     */
+    public void prewarm(JComponent invoker)
+    {
+        if (invoker == null)
+        {
+            throw new IllegalArgumentException("invoker cannot be null");
+        }
+        
+        if (prewarmTask != null)
+        {
+            prewarmTask.cancel();
+        }
+        
+        prewarmTask = new PrewarmTask(invoker);
+        prewarmTask.start();
+    }
+    
+    private void prewarmWindow(JComponent invoker)
+    {
+        Frame newFrame = getFrame(invoker);
+        if (newFrame == null || isVisible() || 
+            (window != null && window.getOwner() == newFrame))
+        {
+            return;
+        }
+        
+        if (window != null)
+        {
+            disposeWindow();
+        }
+        
+        frameRef = new WeakReference<Frame>(newFrame);
+        setInvoker(invoker);
+        requestContent();
+        window = createWindow();
+        
+        // Painting once loads the fonts and lays out the HTML views:
+        BufferedImage image = new BufferedImage(Math.max(1, getWidth()), 
+                                                Math.max(1, getHeight()), 
+                                                BufferedImage.TYPE_INT_ARGB);
+        Graphics g = image.createGraphics();
+        try
+        {
+            paint(g);
+        }
+        finally
+        {
+            g.dispose();
+        }
+    }
+    
+    private void disposeWindow()
+    {
+        uninstallListeners();
+        if (window.getOwner() != null)
+        {
+            window.getOwner().removeWindowListener(ownerWindowListener);
+        }
+        window.setVisible(false);
+        window.dispose();
+        window = null;
+    }
+    
+    @Override
+    public boolean isVisible()
+    {
+        return layeredPane != null || (window != null && window.isVisible());
+    }
+    
+    @Override
+    public void setLocation(int x, int y)
+    {
+        if (location == null)
+        {
+            location = new Point(x, y);
+        }
+        else
+        {
+            location.x = x;
+            location.y = y;
+        }
+        
+        applyLocation();
+    }
+    
+    @Override
+    public void setLocation(Point p)
+    {
+        if (location != p)
+        {
+            location = p;
+            
+            if (p != null)
+            {
+                applyLocation();
+            }
+        }
+    }
+    
+    private void applyLocation()
+    {
+        if (layeredPane != null)
+        {
+            Point p = new Point(location);
+            SwingUtilities.convertPointFromScreen(p, layeredPane);
+            setBounds(p.x, p.y, getWidth(), getHeight());
+        }
+        
+        if (window != null)
+        {
+            window.setLocation(location);
+        }
+    }
+    
+    /**
+     * Displays the popup menu at the position x,y in the coordinate space of
+     * the component invoker.
+     * 
+     * @param invoker
+     *            the component in whose space the popup menu is to appear
+     * @param x
+     *            the x coordinate in invoker's coordinate space at which the
+     *            popup menu is to be displayed
+     * @param y
+     *            the y coordinate in invoker's coordinate space at which the
+     *            popup menu is to be displayed
+     */
+    public void show(JComponent invoker, int x, int y)
+    {
+        Frame newFrame = getFrame(invoker);
+        // If the frame or the invoker has changed then hide
+        // the current popup window:
+        if (isVisible() && 
+            (invoker != getInvoker() || (newFrame != null && newFrame != getOwnerFrame())))
+        {
+            setVisible(false);
+        }
+        
+        // Store the invoker for special event handling:
+        setInvoker(invoker);
+        invokerOffset.setLocation(x, y);
+        
+        // Use the invoker's frame so that events
+        // are propagated properly:
+        if (newFrame != null)
+        {
+            frameRef = new WeakReference<Frame>(newFrame);
+        }
+        
+        if (invoker != null)
+        {
+            Point p = locate(invoker);
+            setLocation(p.x, p.y);
+        } else
+        {
+            setLocation(x, y);
+        }
+        
+        setVisible(true);      
+    }
+    
+    /**
+     * Returns the screen location for the popup at the current offset from
+     * the invoker.
+     */
+    private Point locate(JComponent invoker)
+    {
+        Point invokerOrigin = invoker.getLocationOnScreen();
+        Point p = new Point(invokerOrigin.x + invokerOffset.x, 
+                            invokerOrigin.y + invokerOffset.y);
+        
+        if (screenAwarePlacement)
+        {
+            Rectangle invokerBounds = new Rectangle(invokerOrigin, invoker.getSize());
+            p = PopupPlacement.place(invoker.getGraphicsConfiguration(), invokerBounds, 
+                                     getPreferredSize(), p);
+        }
+        return p;
+    }
+    
+    private JComponent getInvoker()
+    {
+        return invokerRef == null ? null : invokerRef.get();
+    }
+    
+    private void setInvoker(JComponent invoker)
+    {
+        JComponent oldInvoker = getInvoker();
+        if (invoker == oldInvoker)
+        {
+            return;
+        }
+        
+        if (oldInvoker != null)
+        {
+            oldInvoker.removeHierarchyListener(invokerHierarchyListener);
+        }
+        
+        if (invoker != null)
+        {
+            invoker.addHierarchyListener(invokerHierarchyListener);
+            invokerRef = new WeakReference<JComponent>(invoker);
+        }
+        else
+        {
+            invokerRef = null;
+        }
+    }
+    
+    private Frame getOwnerFrame()
+    {
+        return frameRef == null ? null : frameRef.get();
+    }
+    
+    /**
+     * Dismisses showing popups when the mouse is clicked outside of them.
+     * A single instance serves every popup and is registered with the
+     * toolkit only while at least one popup is showing.
+     */
+    private static class GlobalMouseEventListener implements AWTEventListener
+    {
+        private static final GlobalMouseEventListener INSTANCE = new GlobalMouseEventListener();
+        
+        private final List<PopupWindow> showingPopups = new ArrayList<PopupWindow>();
+        private final Point screenPoint = new Point();
+        private final Rectangle bounds = new Rectangle();
+        
+        static void register(PopupWindow popup)
+        {
+            INSTANCE.add(popup);
+        }
+        
+        static void unregister(PopupWindow popup)
+        {
+            INSTANCE.remove(popup);
+        }
+        
+        private void add(PopupWindow popup)
+        {
+            if (showingPopups.contains(popup))
+            {
+                return;
+            }
+            
+            showingPopups.add(popup);
+            if (showingPopups.size() == 1)
+            {
+                Toolkit.getDefaultToolkit().addAWTEventListener(this, 
+                                                                AWTEvent.MOUSE_EVENT_MASK);
+            }
+        }
+        
+        private void remove(PopupWindow popup)
+        {
+            if (showingPopups.remove(popup) && showingPopups.isEmpty())
+            {
+                Toolkit.getDefaultToolkit().removeAWTEventListener(this);
+            }
+        }
+        
+        public void eventDispatched(AWTEvent event)
+        {
+            if (event.getID() != MouseEvent.MOUSE_CLICKED || !(event instanceof MouseEvent))
+            {
+                return;
+            }
+            
+            MouseEvent mouseEvent = (MouseEvent)event;
+            Component c = mouseEvent.getComponent();
+            
+            if (c == null) 
+            {
+                return;
+            }
+            
+            screenPoint.setLocation(mouseEvent.getX(), mouseEvent.getY());
+            SwingUtilities.convertPointToScreen(screenPoint, c);
+            
+            // Hiding a popup unregisters it, so work from a copy:
+            PopupWindow[] popups = showingPopups.toArray(new PopupWindow[showingPopups.size()]);
+            for (PopupWindow popup : popups)
+            {
+                if (c != popup.getInvoker() && !isInside(popup, mouseEvent, c))
+                {
+                    popup.setVisible(false);
+                }
+            }
+        }
+        
+        private boolean isInside(PopupWindow popup, MouseEvent mouseEvent, Component c)
+        {
+            Component root;
+            if (popup.layeredPane != null)
+            {
+                root = popup;
+                bounds.setBounds(0, 0, popup.getWidth(), popup.getHeight());
+                Point origin = bounds.getLocation();
+                SwingUtilities.convertPointToScreen(origin, popup);
+                bounds.setLocation(origin);
+            }
+            else if (popup.window != null)
+            {
+                root = popup.window;
+                popup.window.getBounds(bounds);
+            }
+            else
+            {
+                return false;
+            }
+            
+            // Clicks outside of the popup's screen bounds can be dismissed
+            // without looking at the component tree, unless they are in a
+            // window owned by the popup's window, such as a combo box
+            // dropdown that extends past the popup. The parent walk below
+            // reaches the popup's window through the owner for those.
+            if (!bounds.contains(screenPoint) && !isOwnedBy(c, popup.window))
+            {
+                return false;
+            }
+            
+            Component component = SwingUtilities.getDeepestComponentAt(c, mouseEvent.getX(), mouseEvent.getY());
+            return isAncestorOf(component, root);
+        }
+        
+        private static boolean isOwnedBy(Component c, Window owner)
+        {
+            if (owner == null)
+            {
+                return false;
+            }
+            
+            Window w = c instanceof Window ? (Window)c : SwingUtilities.getWindowAncestor(c);
+            for (; w != null; w = w.getOwner())
+            {
+                if (w == owner)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private static boolean isAncestorOf(Component component, Object ancestor) 
+        {
+            if (component == null) 
+            {
+                return false;
+            }
     
-    public PopupWindow()
-    {
-        globalMouseEventListener = new GlobalMouseEventListener();
-        popupWindowFocusListener = new PopupWindowFocusListener();
-        ancestorListener = new PopupAncestorListener();
+            for (Component p = component; p != null; p = p.getParent()) 
+            {
+                if (p == ancestor) {
+                    return true;
+                }
+            }
+            return false;
+        } 
     }
-    
-    /* Causes this Window to be sized to fit the preferred size
-     * and layouts of its subcomponents.  If the window and/or its owner
-     * are not yet displayable, both are made displayable before
-     * calculating the preferred size.  The Window will be validated
-     * after the preferredSize is calculated.
+
+    /**
+     * Waits for the invoker to be showing and for the event queue to be
+     * empty, then prewarms the popup.
      */
-    public void pack()
+    private class PrewarmTask implements HierarchyListener, ActionListener
     {
-        if (window != null)
+        private static final int IDLE_CHECK_MILLIS = 50;
+        
+        /**
+         * Longest time to wait for an idle event queue before prewarming
+         * anyway. Busy applications may never drain the queue completely.
+         */
+        private static final long MAX_IDLE_WAIT_MILLIS = 2000;
+        
+        private final WeakReference<JComponent> invokerRef;
+        private final Timer idleTimer;
+        
+        /** Time the idle timer was started, in nanoseconds. */
+        private long idleWaitStart;
+        
+        PrewarmTask(JComponent invoker)
         {
-            window.pack();
+            invokerRef = new WeakReference<JComponent>(invoker);
+            idleTimer = new Timer(IDLE_CHECK_MILLIS, this);
         }
-    }
-    
-    @Override
-    public void setVisible(boolean visible)
-    {
-        // No-op:
-        if (visible == isVisible())
+        
+        void start()
         {
-            return;
+            JComponent invoker = invokerRef.get();
+            if (invoker.isShowing())
+            {
+                startIdleTimer();
+            }
+            else
+            {
+                invoker.addHierarchyListener(this);
+            }
         }
         
-        if (visible)
-        {   
-            if (window != null)
+        void cancel()
+        {
+            JComponent invoker = invokerRef.get();
+            if (invoker != null)
             {
-                uninstallListeners();
-                window.setVisible(false);
-                window.dispose();
+                invoker.removeHierarchyListener(this);
             }
+            idleTimer.stop();
             
-            window = createWindow();
-            installListeners();
-            window.setVisible(true);
+            if (prewarmTask == this)
+            {
+                prewarmTask = null;
+            }
         }
-        else
+        
+        public void hierarchyChanged(HierarchyEvent e)
         {
-            if (window != null)
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && 
+                e.getComponent().isShowing())
             {
-                uninstallListeners();
-                window.setVisible(false);
-                window.dispose();
-                window = null;
+                e.getComponent().removeHierarchyListener(this);
+                startIdleTimer();
+            }
+        }
+        
+        private void startIdleTimer()
+        {
+            idleWaitStart = System.nanoTime();
+            idleTimer.start();
+        }
+
+        public void actionPerformed(ActionEvent e)
+        {
+            // Wait until there is nothing else for the EDT to do, but
+            // not forever:
+            long waitedMillis = (System.nanoTime() - idleWaitStart) / 1000000L;
+            if (waitedMillis < MAX_IDLE_WAIT_MILLIS && 
+                Toolkit.getDefaultToolkit().getSystemEventQueue().peekEvent() != null)
+            {
+                return;
+            }
+            
+            cancel();
+            
+            JComponent invoker = invokerRef.get();
+            if (invoker != null && invoker.isShowing())
+            {
+                prewarmWindow(invoker);
             }
         }
     }
     
-    @Override
-    public boolean isVisible()
+    private class PopupWindowFocusListener implements WindowFocusListener
     {
-        return window != null && window.isVisible();
+        public void windowGainedFocus(WindowEvent e)
+        {
+            // Ignore
+        }
+
+        public void windowLostFocus(WindowEvent e)
+        {
+            // When following the invoker, the owner frame takes the focus
+            // while it is dragged. Clicks inside the frame still dismiss
+            // the popup through the global mouse listener.
+            if (followInvoker && e.getOppositeWindow() == getOwnerFrame())
+            {
+                return;
+            }
+            
+            setVisible(false);
+        }
     }
     
-    @Override
-    public void setLocation(int x, int y)
+    private class PopupAncestorListener implements AncestorListener, ActionListener
     {
-        if (location == null)
+        // About one display frame:
+        private static final int RELOCATE_DELAY_MILLIS = 16;
+        
+        private final Timer relocateTimer;
+        
+        PopupAncestorListener()
         {
-            location = new Point(x, y);
+            relocateTimer = new Timer(RELOCATE_DELAY_MILLIS, this);
+            relocateTimer.setRepeats(false);
         }
-        else
+        
+        void stop()
         {
-            location.x = x;
-            location.y = y;
+            relocateTimer.stop();
         }
         
-        if (window != null)
+        public void ancestorAdded(AncestorEvent event)
         {
-            window.setLocation(location);
+            if (followInvoker)
+            {
+                scheduleRelocate();
+            }
+            else
+            {
+                setVisible(false);
+            }
+        }
+
+        public void ancestorMoved(AncestorEvent event)
+        {
+            if (followInvoker)
+            {
+                scheduleRelocate();
+            }
+            else
+            {
+                // Removes the popup when the invoker component moves:
+                setVisible(false);
+            }
+        }
+
+        public void ancestorRemoved(AncestorEvent event)
+        {
+            setVisible(false);
+        }
+        
+        private void scheduleRelocate()
+        {
+            // Moves arriving before the timer fires are handled
+            // by the same relocation:
+            if (!relocateTimer.isRunning())
+            {
+                relocateTimer.start();
+            }
+        }
+        
+        public void actionPerformed(ActionEvent e)
+        {
+            JComponent invoker = getInvoker();
+            if (invoker == null || !isVisible())
+            {
+                return;
+            }
+            
+            // The visible rect is empty once the invoker has been
+            // scrolled or clipped out of its viewport:
+            if (!invoker.isShowing() || invoker.getVisibleRect().isEmpty())
+            {
+                setVisible(false);
+                return;
+            }
+            
+            Point p = locate(invoker);
+            if (!p.equals(location))
+            {
+                setLocation(p.x, p.y);
+            }
         }
     }
     
-    @Override
-    public void setLocation(Point p)
+    /**
+     * Releases the popup once its invoker can no longer be displayed, for
+     * example when the invoker is removed from its parent or its frame is
+     * disposed, so that a hidden but reusable window does not keep the
+     * invoker's frame alive.
+     */
+    private class InvokerHierarchyListener implements HierarchyListener
     {
-        if (location != p)
+        public void hierarchyChanged(HierarchyEvent e)
         {
-            location = p;
-            
-            if (p != null && window != null)
+            if ((e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0 && 
+                !e.getComponent().isDisplayable())
             {
-                window.setLocation(location);
+                dispose();
             }
         }
     }
     
     /**
-     * Displays the popup menu at the position x,y in the coordinate space of
-     * the component invoker.
-     * 
-     * @param invoker
-     *            the component in whose space the popup menu is to appear
-     * @param x
-     *            the x coordinate in invoker's coordinate space at which the
-     *            popup menu is to be displayed
-     * @param y
-     *            the y coordinate in invoker's coordinate space at which the
-     *            popup menu is to be displayed
+     * Releases the popup when the frame owning its window is closed. The
+     * window references its owner, so a reused or prewarmed window would
+     * otherwise keep a closed frame alive for as long as the popup lives.
      */
-    public void show(JComponent invoker, int x, int y)
+    private class OwnerWindowListener extends WindowAdapter
     {
-        // Store the invoker for special event handling:
-        this.invoker = invoker;
-
-        Frame newFrame = getFrame(invoker);
-        // If the frame has changed then hide the current
-        // popup window:
-        if (newFrame != frame)
+        @Override
+        public void windowClosed(WindowEvent e)
+        {
+            dispose();
+        }
+    }
+    
+    /**
+     * Watches repaint requests for popups that hold a snapshot. A request
+     * for a popup or any component inside it means the snapshot no longer
+     * matches the content. Requests for components are passed on to the
+     * RepaintManager that was current when this one was installed, so an
+     * application's own manager keeps working.
+     */
+    private static class SnapshotRepaintManager extends RepaintManager
+    {
+        private static SnapshotRepaintManager installed;
+        
+        // Popups with a snapshot. Weak so that the manager
+        // does not keep abandoned popups alive:
+        private static final Map<PopupWindow, Boolean> popups = new WeakHashMap<PopupWindow, Boolean>();
+        
+        private final RepaintManager delegate;
+        
+        private SnapshotRepaintManager(RepaintManager delegate)
+        {
+            this.delegate = delegate;
+        }
+        
+        /**
+         * Starts watching the popup's content, installing the manager if
+         * it is not current.
+         */
+        static void track(PopupWindow popup)
         {
-            // Use the invoker's frame so that events
-            // are propagated properly:
-            if (newFrame != null)
+            synchronized (popups)
             {
-                this.frame = newFrame;
-                if (window != null)
-                {
-                    setVisible(false);
-                }
+                popups.put(popup, Boolean.TRUE);
+            }
+            
+            if (!isInstalled())
+            {
+                installed = new SnapshotRepaintManager(
+                        RepaintManager.currentManager((Component)null));
+                RepaintManager.setCurrentManager(installed);
             }
         }
         
-        if (invoker != null)
+        /**
+         * Stops watching the popup's content. The previous manager is put
+         * back once no popup holds a snapshot.
+         */
+        static void untrack(PopupWindow popup)
         {
-            Point invokerOrigin = invoker.getLocationOnScreen();
-            setLocation(invokerOrigin.x + x, invokerOrigin.y + y);
-        } else
+            boolean empty;
+            synchronized (popups)
+            {
+                popups.remove(popup);
+                empty = popups.isEmpty();
+            }
+            
+            if (empty && isInstalled())
+            {
+                RepaintManager.setCurrentManager(installed.delegate);
+                installed = null;
+            }
+        }
+        
+        static boolean isInstalled()
         {
-            setLocation(x, y);
+            return installed != null && 
+                RepaintManager.currentManager((Component)null) == installed;
         }
         
-        setVisible(true);      
-    }
-    
-    private class GlobalMouseEventListener implements AWTEventListener
-    {
-        public void eventDispatched(AWTEvent event)
+        private static void contentChanged(Component c)
         {
-            if (event instanceof MouseEvent)
+            // Repaints may be requested from any thread:
+            synchronized (popups)
             {
-                MouseEvent mouseEvent = (MouseEvent)event;
-                
-                if (mouseEvent.getID() == MouseEvent.MOUSE_CLICKED)
+                for (PopupWindow popup : popups.keySet())
                 {
-                    Component c = mouseEvent.getComponent();
-                    
-                    if (c == null || c == invoker) {
-                        return;
-                    }
-                    
-                    Component component = SwingUtilities.getDeepestComponentAt(c, mouseEvent.getX(), mouseEvent.getY());
-                    
-                    if (!isAncestorOf(component, window))
+                    if (popup.snapshotValid && 
+                        (c == popup || SwingUtilities.isDescendingFrom(c, popup)))
                     {
-                        setVisible(false);
+                        popup.invalidateSnapshot();
                     }
                 }
             }
         }
         
-        public boolean isAncestorOf(Component component, Object ancestor) 
+        @Override
+        public void addDirtyRegion(JComponent c, int x, int y, int w, int h)
         {
-            if (component == null) 
-            {
-                return false;
-            }
-    
-            for (Component p = component; p != null; p = p.getParent()) 
-            {
-                if (p == ancestor) {
-                    return true;
-                }
-            }
-            return false;
-        } 
-    }
-
-    private class PopupWindowFocusListener implements WindowFocusListener
-    {
-        public void windowGainedFocus(WindowEvent e)
+            contentChanged(c);
+            delegate.addDirtyRegion(c, x, y, w, h);
+        }
+        
+        @Override
+        public void markCompletelyDirty(JComponent c)
         {
-            // Ignore
+            contentChanged(c);
+            delegate.markCompletelyDirty(c);
         }
-
-        public void windowLostFocus(WindowEvent e)
+        
+        @Override
+        public void markCompletelyClean(JComponent c)
         {
-            setVisible(false);
+            delegate.markCompletelyClean(c);
         }
-    }
-    
-    private class PopupAncestorListener implements AncestorListener
-    {
-        public void ancestorAdded(AncestorEvent event)
+        
+        @Override
+        public boolean isCompletelyDirty(JComponent c)
         {
-            setVisible(false);
+            return delegate.isCompletelyDirty(c);
         }
-
-        public void ancestorMoved(AncestorEvent event)
+        
+        @Override
+        public Rectangle getDirtyRegion(JComponent c)
         {
-            // Removes the popup when the invoker component moves:
-            setVisible(false);
+            return delegate.getDirtyRegion(c);
         }
-
-        public void ancestorRemoved(AncestorEvent event)
+        
+        @Override
+        public void addInvalidComponent(JComponent c)
         {
-            setVisible(false);
+            contentChanged(c);
+            delegate.addInvalidComponent(c);
+        }
+        
+        @Override
+        public void removeInvalidComponent(JComponent c)
+        {
+            delegate.removeInvalidComponent(c);
+        }
+        
+        @Override
+        public Image getOffscreenBuffer(Component c, int proposedWidth, int proposedHeight)
+        {
+            return delegate.getOffscreenBuffer(c, proposedWidth, proposedHeight);
+        }
+        
+        @Override
+        public Image getVolatileOffscreenBuffer(Component c, int proposedWidth, int proposedHeight)
+        {
+            return delegate.getVolatileOffscreenBuffer(c, proposedWidth, proposedHeight);
+        }
+        
+        @Override
+        public void setDoubleBufferMaximumSize(Dimension d)
+        {
+            delegate.setDoubleBufferMaximumSize(d);
+        }
+        
+        @Override
+        public Dimension getDoubleBufferMaximumSize()
+        {
+            return delegate.getDoubleBufferMaximumSize();
+        }
+        
+        @Override
+        public void setDoubleBufferingEnabled(boolean enabled)
+        {
+            delegate.setDoubleBufferingEnabled(enabled);
+        }
+        
+        @Override
+        public boolean isDoubleBufferingEnabled()
+        {
+            return delegate.isDoubleBufferingEnabled();
         }
     }
     
@@ -282,10 +1418,15 @@ public class PopupWindow extends JPanel
     private JWindow createWindow()
     {
         JWindow window;
+        Frame frame = getOwnerFrame();
         
         if (frame != null)
         {
             window = new JWindow(frame);
+            
+            // The window holds its owner, so it has to go when the
+            // owner is closed:
+            frame.addWindowListener(ownerWindowListener);
         }
         else
         {
@@ -307,14 +1448,18 @@ public class PopupWindow extends JPanel
     
     private void installListeners()
     {
-        Toolkit.getDefaultToolkit().addAWTEventListener(globalMouseEventListener, 
-                                                        AWTEvent.MOUSE_EVENT_MASK);
+        GlobalMouseEventListener.register(this);
 
-        if (window != null)
+        if (layeredPane != null)
+        {
+            getOwnerFrame().addWindowFocusListener(popupWindowFocusListener);
+        }
+        else if (window != null)
         {
             window.addWindowFocusListener(popupWindowFocusListener);
         }
         
+        JComponent invoker = getInvoker();
         if (invoker != null)
         {
             invoker.addAncestorListener(ancestorListener);
@@ -323,17 +1468,26 @@ public class PopupWindow extends JPanel
     
     private void uninstallListeners()
     {
-        Toolkit.getDefaultToolkit().removeAWTEventListener(globalMouseEventListener);
+        GlobalMouseEventListener.unregister(this);
+        
+        Frame frame = getOwnerFrame();
+        if (frame != null)
+        {
+            frame.removeWindowFocusListener(popupWindowFocusListener);
+        }
         
         if (window != null)
         {
             window.removeWindowFocusListener(popupWindowFocusListener);
         }
         
+        JComponent invoker = getInvoker();
         if (invoker != null)
         {
             invoker.removeAncestorListener(ancestorListener);
         }
+        
+        ancestorListener.stop();
     }
     
     /**
@@ -18,6 +18,7 @@ package com.krohinc.ui.util;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 
@@ -68,28 +69,54 @@ public class PopupWindowExample extends JPanel
         });
         smsButton.setText("<html><b>SMS</b></html>");
         
+        // Build the popup's window once the frame is up so the
+        // first click is as fast as the later ones:
+        popupWindow.prewarm(smsButton);
+        
         add(smsButton);
     }
     
     private PopupWindow buildPopupWindow()
     {
         final PopupWindow popup = new PopupWindow();
-        popup.setLayout(new GridLayout(7, 1, 0, 0));
+        popup.setWindowReuse(true);
+        popup.setScreenAwarePlacement(true);
+        popup.setSnapshotReshow(true);
         
         Border compound = BorderFactory.createCompoundBorder(
                 BorderFactory.createLineBorder(Color.BLACK), 
                 BorderFactory.createEmptyBorder(5, 5, 5, 5));
         popup.setBorder(compound);
         
-        popup.add(new JLabel("<html>Send an SMS for free:</html>"));
-        popup.add(new JLabel("<html><b>To</b></html>"));
-        popup.add(new JTextField());
-        popup.add(new JLabel("<html>Enter a number</html>"));
-        popup.add(new JLabel("<html><b>Message</b></html>"));
+        // The form is only built when the popup is first needed:
+        popup.setContentFactory(new PopupContentFactory<Void>()
+        {
+            public Void loadData()
+            {
+                return null;
+            }
+
+            public Component createContent(Void data)
+            {
+                return buildSmsForm(popup);
+            }
+        });
+        
+        return popup;
+    }
+    
+    private static JPanel buildSmsForm(final PopupWindow popup)
+    {
+        JPanel form = new JPanel(new GridLayout(7, 1, 0, 0));
+        form.add(new JLabel("<html>Send an SMS for free:</html>"));
+        form.add(new JLabel("<html><b>To</b></html>"));
+        form.add(new JTextField());
+        form.add(new JLabel("<html>Enter a number</html>"));
+        form.add(new JLabel("<html><b>Message</b></html>"));
 
         JTextArea textArea = new JTextArea();
         TextAreaFocusTraversalModifier.invertFocusTraversalBehaviour(textArea);
-        popup.add(textArea);
+        form.add(textArea);
         
         JButton sendButton = new JButton(new AbstractAction()
         {
@@ -102,10 +129,8 @@ public class PopupWindowExample extends JPanel
         sendButton.setFocusable(false);
         sendButton.setText("Send");
         
-        popup.add(sendButton);
-        popup.pack();
-        
-        return popup;
+        form.add(sendButton);
+        return form;
     }
     
     /**
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.ui.util;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.GraphicsEnvironment;
+import java.awt.GridLayout;
+import java.awt.Toolkit;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+
+/**
+ * <p>
+ * Measures how long {@link PopupWindow#show(javax.swing.JComponent, int, int)}
+ * takes to put the popup on screen, once with a new window per show and once
+ * with window reuse enabled, and prints latency percentiles for both. Each
+ * sample covers the show call plus a toolkit sync so that the native window
+ * requests are included. Needs a display.
+ * 
+ * <pre>
+ * PopupWindowLatency [cycles]
+ * </pre>
+ * 
+ * @author Andrew Kroh
+ */
+public class PopupWindowLatency
+{
+    private static final int WARMUP_CYCLES = 20;
+    
+    private final JFrame frame;
+    private final JButton invoker;
+    
+    private PopupWindowLatency()
+    {
+        frame = new JFrame("PopupWindow Latency");
+        invoker = new JButton("<html><b>SMS</b></html>");
+        frame.add(invoker, BorderLayout.CENTER);
+        frame.setSize(300, 200);
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+    }
+    
+    private long[] measure(boolean windowReuse, int cycles) throws Exception
+    {
+        final PopupWindow popup = buildPopupWindow();
+        popup.setWindowReuse(windowReuse);
+        
+        long[] latencies = new long[cycles];
+        final long[] sample = new long[1];
+        Runnable show = new Runnable()
+        {
+            public void run()
+            {
+                long start = System.nanoTime();
+                popup.show(invoker, 0, invoker.getHeight() + 5);
+                Toolkit.getDefaultToolkit().sync();
+                sample[0] = System.nanoTime() - start;
+            }
+        };
+        Runnable hide = new Runnable()
+        {
+            public void run()
+            {
+                popup.setVisible(false);
+                Toolkit.getDefaultToolkit().sync();
+            }
+        };
+        
+        for (int i = -WARMUP_CYCLES; i < cycles; i++)
+        {
+            SwingUtilities.invokeAndWait(show);
+            SwingUtilities.invokeAndWait(hide);
+            
+            if (i >= 0)
+            {
+                latencies[i] = sample[0];
+            }
+        }
+        
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                popup.dispose();
+            }
+        });
+        
+        Arrays.sort(latencies);
+        return latencies;
+    }
+    
+    private static PopupWindow buildPopupWindow()
+    {
+        PopupWindow popup = new PopupWindow();
+        popup.setLayout(new GridLayout(6, 1, 0, 0));
+        popup.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(Color.BLACK), 
+                BorderFactory.createEmptyBorder(5, 5, 5, 5)));
+        
+        popup.add(new JLabel("<html>Send an SMS for free:</html>"));
+        popup.add(new JLabel("<html><b>To</b></html>"));
+        popup.add(new JTextField());
+        popup.add(new JLabel("<html><b>Message</b></html>"));
+        popup.add(new JTextArea());
+        popup.add(new JButton("Send"));
+        return popup;
+    }
+    
+    private static void print(String mode, long[] sorted)
+    {
+        System.out.printf("%-8s p50=%dus p90=%dus p99=%dus max=%dus%n", mode, 
+                micros(percentile(sorted, 0.50)), 
+                micros(percentile(sorted, 0.90)), 
+                micros(percentile(sorted, 0.99)), 
+                micros(sorted[sorted.length - 1]));
+    }
+    
+    private static long percentile(long[] sorted, double fraction)
+    {
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+    
+    private static long micros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        if (GraphicsEnvironment.isHeadless())
+        {
+            System.err.println("PopupWindowLatency needs a display.");
+            System.exit(1);
+        }
+        
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        
+        final PopupWindowLatency[] holder = new PopupWindowLatency[1];
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                holder[0] = new PopupWindowLatency();
+            }
+        });
+        PopupWindowLatency latency = holder[0];
+        
+        System.out.printf("cycles=%d%n", cycles);
+        print("recreate", latency.measure(false, cycles));
+        print("reuse", latency.measure(true, cycles));
+        
+        latency.frame.dispose();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krohinc.ui.util;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.event.WindowEvent;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Checks that a PopupWindow which outlives the UI it was shown from does
+ * not keep its invoker or the invoker's frame from being collected.
+ * 
+ * @author Andrew Kroh
+ */
+public class PopupWindowLeakTest
+{
+    private static final int GC_ATTEMPTS = 20;
+    
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    // Kept alive for the length of a test, like a popup cached by
+    // a long-lived controller:
+    private PopupWindow popup;
+    
+    @Test
+    public void prewarmedPopupDoesNotPinInvoker() throws Exception
+    {
+        final Set<Reference<?>> probes = new HashSet<Reference<?>>();
+        
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                JPanel view = new JPanel();
+                JButton invoker = new JButton("Open");
+                view.add(invoker);
+                
+                popup = new PopupWindow();
+                popup.add(new JLabel("<html><b>Content</b></html>"));
+                
+                // The view is never shown, so the prewarm stays pending:
+                popup.prewarm(invoker);
+                
+                probes.add(new WeakReference<Object>(invoker, queue));
+                probes.add(new WeakReference<Object>(view, queue));
+            }
+        });
+        
+        assertCollected(probes);
+    }
+    
+    @Test
+    public void removedInvokerDoesNotPinFrame() throws Exception
+    {
+        assumeFalse("Needs a display.", GraphicsEnvironment.isHeadless());
+        
+        final Set<Reference<?>> probes = new HashSet<Reference<?>>();
+        
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                JFrame frame = new JFrame("PopupWindowLeakTest");
+                JButton invoker = new JButton("Open");
+                frame.add(invoker);
+                frame.pack();
+                frame.setVisible(true);
+                
+                popup = new PopupWindow();
+                popup.setWindowReuse(true);
+                popup.add(new JLabel("<html><b>Content</b></html>"));
+                popup.show(invoker, 0, invoker.getHeight());
+                
+                // Tear the view down without hiding the popup:
+                frame.getContentPane().remove(invoker);
+                frame.dispose();
+                
+                probes.add(new WeakReference<Object>(invoker, queue));
+                probes.add(new WeakReference<Object>(frame, queue));
+            }
+        });
+        
+        // Let events queued by the teardown run:
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                // Nothing to do.
+            }
+        });
+        
+        assertCollected(probes);
+    }
+    
+    @Test
+    public void closedFrameIsNotPinnedByReusedWindow() throws Exception
+    {
+        assumeFalse("Needs a display.", GraphicsEnvironment.isHeadless());
+        
+        final Set<Reference<?>> probes = new HashSet<Reference<?>>();
+        
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                JFrame frame = new JFrame("PopupWindowLeakTest");
+                frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+                JButton invoker = new JButton("Open");
+                frame.add(invoker);
+                frame.pack();
+                frame.setVisible(true);
+                
+                popup = new PopupWindow();
+                popup.setWindowReuse(true);
+                popup.add(new JLabel("<html><b>Content</b></html>"));
+                popup.show(invoker, 0, invoker.getHeight());
+                popup.setVisible(false);
+                
+                // Close the frame the way the user would, leaving the
+                // invoker in place:
+                frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
+                
+                probes.add(new WeakReference<Object>(invoker, queue));
+                probes.add(new WeakReference<Object>(frame, queue));
+            }
+        });
+        
+        // Let events queued by the teardown run:
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                // Nothing to do.
+            }
+        });
+        
+        assertCollected(probes);
+    }
+    
+    private void assertCollected(Set<Reference<?>> probes) throws InterruptedException
+    {
+        for (int i = 0; i < GC_ATTEMPTS && !probes.isEmpty(); i++)
+        {
+            System.gc();
+            
+            Reference<?> ref;
+            while ((ref = queue.remove(100)) != null)
+            {
+                probes.remove(ref);
+            }
+        }
+        
+        assertTrue(probes.size() + " references were not collected", probes.isEmpty());
+    }
+}